@@ -0,0 +1,249 @@
+package demo.vencs;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ *  A compact binary form of a parsed post, rendering it is a linear walk over the bytes without any parsing.
+ *
+ *  Layout:
+ *    magic byte, format version byte, tag set hash (4 bytes)
+ *    char count and byte count of the text pool (varints), then the text pool
+ *    operations until the end of the data:
+ *      TEXT  char count          text from the pool
+ *      OPEN  tag id, char count  a closed element with its param from the pool, its content follows
+ *      CLOSE                     the end of the innermost open element
+ *
+ *  The text pool holds the texts and params in the order the operations use them, every char encoded in one to three
+ *  bytes the way DataOutput#writeUTF does it. Tag ids are the indexes of the tag names in sorted order,
+ *  and the tag set hash covers the names and the noParse flags, which are everything the structure depends on.
+ *  Data written for another format version or tag set is rejected and has to be compiled again from the source.
+ */
+class BBCodeBinaryFormat {
+    private static final byte MAGIC = (byte) 0xBB;
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 6;
+
+    private static final byte OP_TEXT = 1;
+    private static final byte OP_OPEN = 2;
+    private static final byte OP_CLOSE = 3;
+
+    private final BBCodeTag[] tags;
+    private final Map<BBCodeTag, Integer> tagIds = new HashMap<>();
+    private final int tagSetHash;
+
+    BBCodeBinaryFormat(BBCodeTagRegistry registry) {
+        tags = registry.getTags().toArray(new BBCodeTag[0]);
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < tags.length; i++) {
+            tagIds.put(tags[i], i);
+            description.append(tags[i].getTagName()).append(tags[i].isNoParse() ? ":n;" : ";");
+        }
+        tagSetHash = description.toString().hashCode();
+    }
+
+    byte[] encode(List<BBCodeNode> nodes) {
+        OperationWriter writer = new OperationWriter();
+        BBCodeNode.walk(nodes, writer);
+
+        ByteArray data = new ByteArray(HEADER_LENGTH + 10 + writer.pool.length() + writer.operations.length);
+        data.write(MAGIC);
+        data.write(FORMAT_VERSION);
+        data.writeInt(tagSetHash);
+        data.writeVarint(writer.pool.length());
+
+        ByteArray pool = new ByteArray(writer.pool.length() + 16);
+        for (int i = 0; i < writer.pool.length(); i++) {
+            pool.writeChar(writer.pool.charAt(i));
+        }
+        data.writeVarint(pool.length);
+        data.write(pool.bytes, 0, pool.length);
+        data.write(writer.operations.bytes, 0, writer.operations.length);
+        return data.toByteArray();
+    }
+
+    boolean isCompatible(byte[] data) {
+        return data.length >= HEADER_LENGTH && data[0] == MAGIC && data[1] == FORMAT_VERSION
+                && readInt(data, 2) == tagSetHash;
+    }
+
+    void decode(byte[] data, BBCodeVisitor visitor) {
+        if (!isCompatible(data)) {
+            throw new IllegalArgumentException("Compiled BBCode of another format version or tag set");
+        }
+
+        DataReader reader = new DataReader(data);
+        reader.pos = HEADER_LENGTH;
+        int poolChars = reader.readVarint();
+        int poolBytes = reader.readVarint();
+        String pool = reader.readPool(poolChars, poolBytes);
+
+        int poolPos = 0;
+        int depth = 0;
+        while (reader.pos < data.length) {
+            byte operation = data[reader.pos++];
+            if (operation == OP_TEXT) {
+                int length = reader.readVarint();
+                checkPoolRange(pool, poolPos, length);
+                visitor.text(pool, poolPos, poolPos += length);
+            } else if (operation == OP_OPEN) {
+                int tagId = reader.readVarint();
+                int length = reader.readVarint();
+                if (tagId < 0 || tagId >= tags.length) throw new IllegalArgumentException("Unknown tag id " + tagId);
+                checkPoolRange(pool, poolPos, length);
+                visitor.openElement(tags[tagId], pool.substring(poolPos, poolPos += length));
+                depth++;
+            } else if (operation == OP_CLOSE && depth > 0) {
+                visitor.closeElement();
+                depth--;
+            } else {
+                throw new IllegalArgumentException("Malformed compiled BBCode at " + (reader.pos - 1));
+            }
+        }
+        if (depth != 0) {
+            throw new IllegalArgumentException("Malformed compiled BBCode, " + depth + " elements not closed");
+        }
+    }
+
+    private static void checkPoolRange(String pool, int poolPos, int length) {
+        if (length < 0 || length > pool.length() - poolPos) {
+            throw new IllegalArgumentException("Malformed compiled BBCode, text out of the pool");
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8
+                | (data[offset + 3] & 0xff);
+    }
+
+    private class OperationWriter implements BBCodeVisitor {
+        private final StringBuilder pool = new StringBuilder();
+        private final ByteArray operations = new ByteArray(64);
+
+        @Override
+        public void text(CharSequence source, int start, int end) {
+            if (start == end) return;
+            operations.write(OP_TEXT);
+            operations.writeVarint(end - start);
+            pool.append(source, start, end);
+        }
+
+        @Override
+        public void openElement(BBCodeTag tag, String param) {
+            operations.write(OP_OPEN);
+            operations.writeVarint(tagIds.get(tag));
+            operations.writeVarint(param.length());
+            pool.append(param);
+        }
+
+        @Override
+        public void closeElement() {
+            operations.write(OP_CLOSE);
+        }
+    }
+
+    private static class ByteArray {
+        private byte[] bytes;
+        private int length;
+
+        private ByteArray(int capacity) {
+            bytes = new byte[capacity];
+        }
+
+        private void write(byte b) {
+            if (length == bytes.length) {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2 + 16);
+            }
+            bytes[length++] = b;
+        }
+
+        private void write(byte[] source, int offset, int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+            }
+            System.arraycopy(source, offset, bytes, length, count);
+            length += count;
+        }
+
+        private void writeInt(int value) {
+            write((byte) (value >>> 24));
+            write((byte) (value >>> 16));
+            write((byte) (value >>> 8));
+            write((byte) value);
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7f) != 0) {
+                write((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            write((byte) value);
+        }
+
+        private void writeChar(char c) {
+            if (c >= 0x0001 && c <= 0x007f) {
+                write((byte) c);
+            } else if (c <= 0x07ff) {
+                write((byte) (0xc0 | (c >> 6)));
+                write((byte) (0x80 | (c & 0x3f)));
+            } else {
+                write((byte) (0xe0 | (c >> 12)));
+                write((byte) (0x80 | ((c >> 6) & 0x3f)));
+                write((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+    }
+
+    private static class DataReader {
+        private final byte[] data;
+        private int pos;
+
+        private DataReader(byte[] data) {
+            this.data = data;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (pos >= data.length) break;
+                byte b = data[pos++];
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) return value;
+            }
+            throw new IllegalArgumentException("Malformed compiled BBCode at " + pos);
+        }
+
+        private String readPool(int charCount, int byteCount) {
+            int end = pos + byteCount;
+            // every char takes at least a byte, so a count beyond the bytes is refused before it is allocated
+            if (charCount < 0 || byteCount < 0 || charCount > byteCount || end > data.length || end < pos) {
+                throw new IllegalArgumentException("Malformed compiled BBCode text pool");
+            }
+
+            char[] chars = new char[charCount];
+            int count = 0;
+            while (pos < end && count < charCount) {
+                int b = data[pos++] & 0xff;
+                if (b < 0x80) {
+                    chars[count++] = (char) b;
+                } else if (b < 0xe0 && pos < end) {
+                    chars[count++] = (char) ((b & 0x1f) << 6 | (data[pos++] & 0x3f));
+                } else if (pos + 1 < end) {
+                    chars[count++] = (char) ((b & 0x0f) << 12 | (data[pos++] & 0x3f) << 6 | (data[pos++] & 0x3f));
+                } else {
+                    break;
+                }
+            }
+            if (pos != end || count != charCount) {
+                throw new IllegalArgumentException("Malformed compiled BBCode text pool");
+            }
+            return new String(chars);
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package demo.vencs;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ *  Converts a whole dump of posts to HTML on all cores. Two formats are read, and written back the same way:
+ *    records  every post is a 4-byte big-endian length followed by that many bytes of UTF-8 BBCode
+ *    jsonl    one JSON object per line, the BBCode in a top-level string field is replaced by its HTML and the rest of
+ *             the line is copied as it is, a line without the field is copied as it is
+ *
+ *  The input is memory-mapped and cut into chunks of whole records, which the worker threads render while the output
+ *  is written through a FileChannel in input order, at most two chunks per thread ahead of it.
+ *  After every chunk is written and forced to disk, the input and output offsets are saved to <output>.checkpoint,
+ *  so a run with resume set continues after the last chunk written. The checkpoint is deleted once the dump is done.
+ *
+ *  Usage: java demo.vencs.BBCodeBulkConverter records|jsonl <input> <output>
+ *         [--threads=N] [--chunk-mb=N] [--field=name] [--resume]
+ */
+public class BBCodeBulkConverter {
+    public enum Format {
+        RECORDS,
+        JSONL
+    }
+
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    private final BBCodeParser parser;
+    private final Format format;
+    private final int threads;
+    private final int chunkSize;
+    // the JSON key holding the BBCode, with its quotes, as UTF-8
+    private final byte[] fieldKey;
+    private PrintStream progress;
+
+    /**
+     * @param chunkSize the input bytes per chunk, a chunk holds at least one record however large it is
+     * @param field     the JSON field holding the BBCode, for Format.JSONL
+     */
+    public BBCodeBulkConverter(BBCodeParser parser, Format format, int threads, int chunkSize, String field) {
+        if (threads <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("threads and chunkSize must be positive");
+        }
+        this.parser = parser;
+        this.format = format;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.fieldKey = ("\"" + field + "\"").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /*
+     *  Prints a line with the records per second to the stream after every chunk, null for none.
+     */
+    public void setProgress(PrintStream progress) {
+        this.progress = progress;
+    }
+
+    /*
+     *  Returns the number of records converted by this run.
+     */
+    public long convert(Path input, Path output, boolean resume) throws IOException {
+        Path checkpoint = output.resolveSibling(output.getFileName() + ".checkpoint");
+        long inputOffset = 0, outputOffset = 0;
+        if (resume && Files.exists(checkpoint)) {
+            String[] offsets = new String(Files.readAllBytes(checkpoint), StandardCharsets.US_ASCII).trim().split(" ");
+            inputOffset = Long.parseLong(offsets[0]);
+            outputOffset = Long.parseLong(offsets[1]);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            if (out.size() < outputOffset) {
+                throw new IOException("Output shorter than its checkpoint: " + output);
+            }
+            out.truncate(outputOffset);
+
+            long size = in.size();
+            Window window = new Window(in);
+            Deque<Future<Chunk>> pending = new ArrayDeque<>();
+            long records = 0;
+            long startTime = System.nanoTime();
+            long next = inputOffset;
+            while (next < size || !pending.isEmpty()) {
+                while (next < size && pending.size() < threads * 2) {
+                    long chunkStart = next, chunkEnd = findChunkEnd(window, next, size);
+                    pending.add(executor.submit(() -> render(in, chunkStart, chunkEnd)));
+                    next = chunkEnd;
+                }
+
+                Chunk chunk = await(pending.removeFirst());
+                ByteBuffer html = chunk.html.asByteBuffer();
+                while (html.hasRemaining()) {
+                    outputOffset += out.write(html, outputOffset);
+                }
+                out.force(false);
+                saveCheckpoint(checkpoint, chunk.end, outputOffset);
+
+                records += chunk.records;
+                if (progress != null) {
+                    double seconds = (System.nanoTime() - startTime) / 1e9;
+                    progress.printf("%,d records, %,.0f records/s, %.1f%% of the input%n",
+                            records, records / seconds, 100.0 * chunk.end / size);
+                }
+            }
+            Files.deleteIfExists(checkpoint);
+            return records;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long findChunkEnd(Window window, long start, long size) throws IOException {
+        long pos = start;
+        if (format == Format.RECORDS) {
+            do {
+                if (size - pos < 4) throw new IOException("Malformed record at " + pos);
+                int length = window.getInt(pos);
+                if (length < 0 || length > size - pos - 4) {
+                    throw new IOException("Malformed record at " + pos);
+                }
+                pos += 4 + length;
+            } while (pos < size && pos - start < chunkSize);
+        } else {
+            pos = Math.min(size, start + chunkSize);
+            while (pos < size && window.get(pos - 1) != '\n') {
+                pos++;
+            }
+        }
+        if (pos - start > Integer.MAX_VALUE) {
+            throw new IOException("Record at " + start + " too large to be mapped");
+        }
+        return pos;
+    }
+
+    private Chunk render(FileChannel in, long start, long end) throws IOException {
+        MappedByteBuffer bytes = in.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        BBCodeUTF8Buffer html = new BBCodeUTF8Buffer((int) Math.min(Integer.MAX_VALUE - 16, (end - start) * 5 / 4));
+        int records = format == Format.RECORDS ? renderRecords(bytes, html) : renderLines(bytes, html);
+        return new Chunk(end, records, html);
+    }
+
+    private int renderRecords(ByteBuffer bytes, BBCodeUTF8Buffer html) {
+        int records = 0;
+        while (bytes.hasRemaining()) {
+            int length = bytes.getInt();
+            ByteBuffer post = bytes.slice();
+            post.limit(length);
+
+            int header = html.length();
+            html.writeInt(0);
+            parser.parseUTF8ToHTML(post, html);
+            html.setInt(header, html.length() - header - 4);
+
+            bytes.position(bytes.position() + length);
+            records++;
+        }
+        return records;
+    }
+
+    private int renderLines(ByteBuffer bytes, BBCodeUTF8Buffer html) {
+        int records = 0;
+        int lineStart = 0;
+        while (lineStart < bytes.limit()) {
+            int lineEnd = lineStart;
+            while (lineEnd < bytes.limit() && bytes.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int next = Math.min(bytes.limit(), lineEnd + 1);
+
+            int quote = findField(bytes, lineStart, lineEnd);
+            int closingQuote = quote < 0 ? -1 : skipString(bytes, quote, lineEnd) - 1;
+            String bbcode = closingQuote < 0 ? null : unescape(bytes, quote + 1, closingQuote);
+            if (bbcode == null) {
+                html.write(bytes, lineStart, next - lineStart);
+            } else {
+                html.write(bytes, lineStart, quote + 1 - lineStart);
+                writeEscaped(html, parser.parseToHTML(bbcode));
+                html.write(bytes, closingQuote, next - closingQuote);
+            }
+            if (lineEnd > lineStart) records++;
+            lineStart = next;
+        }
+        return records;
+    }
+
+    // the index of the opening quote of the field's string value in a JSON object, or -1
+    private int findField(ByteBuffer bytes, int start, int end) {
+        int i = skipWhitespace(bytes, start, end);
+        if (i >= end || bytes.get(i) != '{') return -1;
+
+        for (i++; ; i++) {
+            i = skipWhitespace(bytes, i, end);
+            if (i >= end || bytes.get(i) != '"') return -1;
+            int keyStart = i;
+            i = skipString(bytes, i, end);
+            if (i < 0) return -1;
+            boolean matches = regionEquals(bytes, keyStart, i, fieldKey);
+
+            i = skipWhitespace(bytes, i, end);
+            if (i >= end || bytes.get(i) != ':') return -1;
+            i = skipWhitespace(bytes, i + 1, end);
+            if (matches) {
+                return i < end && bytes.get(i) == '"' ? i : -1;
+            }
+
+            i = skipValue(bytes, i, end);
+            if (i < 0) return -1;
+            i = skipWhitespace(bytes, i, end);
+            if (i >= end || bytes.get(i) != ',') return -1;
+        }
+    }
+
+    private static int skipWhitespace(ByteBuffer bytes, int i, int end) {
+        while (i < end && (bytes.get(i) == ' ' || bytes.get(i) == '\t' || bytes.get(i) == '\r')) {
+            i++;
+        }
+        return i;
+    }
+
+    // from the opening quote to after the closing quote, or -1
+    private static int skipString(ByteBuffer bytes, int i, int end) {
+        for (i++; i < end; i++) {
+            byte b = bytes.get(i);
+            if (b == '\\') {
+                i++;
+            } else if (b == '"') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    // to the ',' or '}' after the value, or -1
+    private static int skipValue(ByteBuffer bytes, int i, int end) {
+        int depth = 0;
+        while (i < end) {
+            byte b = bytes.get(i);
+            if (b == '"') {
+                i = skipString(bytes, i, end);
+                if (i < 0) return -1;
+                continue;
+            }
+            if (b == '{' || b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                if (depth == 0) return i;
+                depth--;
+            } else if (b == ',' && depth == 0) {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private static boolean regionEquals(ByteBuffer bytes, int start, int end, byte[] expected) {
+        if (end - start != expected.length) return false;
+        for (int i = 0; i < expected.length; i++) {
+            if (bytes.get(start + i) != expected[i]) return false;
+        }
+        return true;
+    }
+
+    // the JSON string between the quotes, or null when it is malformed
+    private static String unescape(ByteBuffer bytes, int start, int end) {
+        BBCodeUTF8Buffer raw = new BBCodeUTF8Buffer(end - start);
+        raw.write(bytes, start, end - start);
+        String escaped = raw.toString();
+        if (escaped.indexOf('\\') < 0) return escaped;
+
+        StringBuilder text = new StringBuilder(escaped.length());
+        for (int i = 0; i < escaped.length(); i++) {
+            char c = escaped.charAt(i);
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+            if (++i == escaped.length()) return null;
+            switch (escaped.charAt(i)) {
+                case '"': text.append('"'); break;
+                case '\\': text.append('\\'); break;
+                case '/': text.append('/'); break;
+                case 'b': text.append('\b'); break;
+                case 'f': text.append('\f'); break;
+                case 'n': text.append('\n'); break;
+                case 'r': text.append('\r'); break;
+                case 't': text.append('\t'); break;
+                case 'u':
+                    if (i + 4 >= escaped.length()) return null;
+                    try {
+                        text.append((char) Integer.parseInt(escaped.substring(i + 1, i + 5), 16));
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    i += 4;
+                    break;
+                default:
+                    return null;
+            }
+        }
+        return text.toString();
+    }
+
+    private static void writeEscaped(BBCodeUTF8Buffer out, String s) {
+        int from = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') continue;
+
+            out.write(s, from, i);
+            switch (c) {
+                case '"': out.write("\\\""); break;
+                case '\\': out.write("\\\\"); break;
+                case '\n': out.write("\\n"); break;
+                case '\r': out.write("\\r"); break;
+                case '\t': out.write("\\t"); break;
+                default: out.write(String.format("\\u%04x", (int) c));
+            }
+            from = i + 1;
+        }
+        out.write(s, from, s.length());
+    }
+
+    private static void saveCheckpoint(Path checkpoint, long inputOffset, long outputOffset) throws IOException {
+        Path temporary = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.write(temporary, (inputOffset + " " + outputOffset + "\n").getBytes(StandardCharsets.US_ASCII));
+        Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Chunk await(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: java demo.vencs.BBCodeBulkConverter records|jsonl <input> <output>"
+                    + " [--threads=N] [--chunk-mb=N] [--field=name] [--resume]");
+            System.exit(2);
+        }
+        Format format = Format.valueOf(args[0].toUpperCase(Locale.ROOT));
+        int threads = Runtime.getRuntime().availableProcessors();
+        int chunkMegabytes = 16;
+        String field = "content";
+        boolean resume = false;
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].startsWith("--threads=")) {
+                threads = Integer.parseInt(args[i].substring("--threads=".length()));
+            } else if (args[i].startsWith("--chunk-mb=")) {
+                chunkMegabytes = Integer.parseInt(args[i].substring("--chunk-mb=".length()));
+            } else if (args[i].startsWith("--field=")) {
+                field = args[i].substring("--field=".length());
+            } else if (args[i].equals("--resume")) {
+                resume = true;
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        BBCodeBulkConverter converter = new BBCodeBulkConverter(BBCodeParser.getInstance(), format, threads,
+                chunkMegabytes << 20, field);
+        converter.setProgress(System.out);
+        long start = System.nanoTime();
+        long records = converter.convert(Paths.get(args[1]), Paths.get(args[2]), resume);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%,d records in %.1f s, %,.0f records/s%n", records, seconds, records / seconds);
+    }
+
+    private static class Chunk {
+        private final long end;
+        private final int records;
+        private final BBCodeUTF8Buffer html;
+
+        private Chunk(long end, int records, BBCodeUTF8Buffer html) {
+            this.end = end;
+            this.records = records;
+            this.html = html;
+        }
+    }
+
+    // a mapped window over the input, moved along as the chunks are cut
+    private static class Window {
+        private final FileChannel channel;
+        private MappedByteBuffer buffer;
+        private long base = -1;
+
+        private Window(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private byte get(long pos) throws IOException {
+            if (base < 0 || pos < base || pos >= base + buffer.limit()) {
+                base = pos;
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW_SIZE, channel.size() - pos));
+            }
+            return buffer.get((int) (pos - base));
+        }
+
+        private int getInt(long pos) throws IOException {
+            return (get(pos) & 0xff) << 24 | (get(pos + 1) & 0xff) << 16 | (get(pos + 2) & 0xff) << 8
+                    | (get(pos + 3) & 0xff);
+        }
+    }
+}
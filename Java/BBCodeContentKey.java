@@ -0,0 +1,82 @@
+package demo.vencs;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ *  The first 128 bits of the SHA-256 hash of the UTF-16 code units, together with the length of the text.
+ *  A salt hashed in front of the text keeps apart the keys of the same text rendered by different parsers.
+ */
+class BBCodeContentKey {
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<byte[]> digestBuffers = ThreadLocal.withInitial(() -> new byte[4096]);
+
+    final long high;
+    final long low;
+    final int length;
+
+    BBCodeContentKey(long high, long low, int length) {
+        this.high = high;
+        this.low = low;
+        this.length = length;
+    }
+
+    static BBCodeContentKey of(String text) {
+        return of(text, 0, false);
+    }
+
+    static BBCodeContentKey of(String text, long salt) {
+        return of(text, salt, true);
+    }
+
+    private static BBCodeContentKey of(String text, long salt, boolean salted) {
+        MessageDigest digest = digests.get();
+        byte[] buffer = digestBuffers.get();
+        int count = 0;
+        if (salted) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[count++] = (byte) (salt >>> shift);
+            }
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            buffer[count++] = (byte) (c >>> 8);
+            buffer[count++] = (byte) c;
+            if (count == buffer.length) {
+                digest.update(buffer, 0, count);
+                count = 0;
+            }
+        }
+        digest.update(buffer, 0, count);
+
+        byte[] hash = digest.digest();
+        return new BBCodeContentKey(toLong(hash, 0), toLong(hash, 8), text.length());
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof BBCodeContentKey)) return false;
+        BBCodeContentKey that = (BBCodeContentKey) o;
+        return high == that.high && low == that.low && length == that.length;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (high ^ (high >>> 32));
+    }
+}
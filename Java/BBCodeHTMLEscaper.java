@@ -0,0 +1,155 @@
+package demo.vencs;
+
+import java.io.IOException;
+
+/*
+ *  Escapes text while it is rendered, so it is written once instead of being escaped in a pass of its own.
+ *  The tables map ASCII chars to their entities and hold null for the chars written as they are, the runs between
+ *  escaped chars are copied in one go. Escaped text is safe in element content and in quoted attribute values.
+ */
+class BBCodeHTMLEscaper {
+    // the brackets of noParse content, so it is not taken for BBCode again
+    static final String[] BRACKETS = table(false, true);
+    static final String[] HTML = table(true, false);
+    static final String[] HTML_AND_BRACKETS = table(true, true);
+    private static final char[] HTML_AND_BRACKETS_CHARS = "&<>\"'[]".toCharArray();
+    // the quotes only, for values that may hold &, < and > as they are, e.g. the address of a mailto link
+    static final String[] QUOTES = table(false, false);
+
+    static {
+        QUOTES['"'] = "&quot;";
+        QUOTES['\''] = "&#39;";
+    }
+
+    private BBCodeHTMLEscaper() {
+    }
+
+    private static String[] table(boolean html, boolean brackets) {
+        String[] entities = new String[128];
+        if (html) {
+            entities['&'] = "&amp;";
+            entities['<'] = "&lt;";
+            entities['>'] = "&gt;";
+            entities['"'] = "&quot;";
+            entities['\''] = "&#39;";
+        }
+        if (brackets) {
+            entities['['] = "&#91;";
+            entities[']'] = "&#93;";
+        }
+        return entities;
+    }
+
+    // the table for text of a parser escaping HTML or not, in noParse content or not, null when nothing is escaped
+    static String[] entities(boolean escapeHTML, boolean noParse) {
+        if (escapeHTML) return noParse ? HTML_AND_BRACKETS : HTML;
+        return noParse ? BRACKETS : null;
+    }
+
+    static void escape(CharSequence source, int start, int end, String[] entities, StringBuilder out) {
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c < 128 && entities[c] != null) {
+                out.append(source, runStart, i).append(entities[c]);
+                runStart = i + 1;
+            }
+        }
+        out.append(source, runStart, end);
+    }
+
+    // the bytes of multi-byte chars are all 0x80 or above, so they are never taken for an escaped char
+    static void escape(BBCodeUTF8Source source, int start, int end, String[] entities, BBCodeUTF8Buffer out) {
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c < 128 && entities[c] != null) {
+                source.copyTo(out, runStart, i);
+                out.write(entities[c]);
+                runStart = i + 1;
+            }
+        }
+        source.copyTo(out, runStart, end);
+    }
+
+    static void escape(String source, int start, int end, String[] entities, BBCodeUTF8Buffer out) {
+        int runStart = start;
+        for (int i = start; i < end; i++) {
+            char c = source.charAt(i);
+            if (c < 128 && entities[c] != null) {
+                out.write(source, runStart, i);
+                out.write(entities[c]);
+                runStart = i + 1;
+            }
+        }
+        out.write(source, runStart, end);
+    }
+
+    static String escapeHTML(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 128 && HTML[c] != null) {
+                StringBuilder escaped = new StringBuilder(s.length() + 16);
+                escape(s, 0, s.length(), HTML, escaped);
+                return escaped.toString();
+            }
+        }
+        return s;
+    }
+
+    /*
+     *  Decodes the entities the tables write, e.g. for a value taken back out of an attribute. Other entities are
+     *  left as they are.
+     */
+    static String unescapeHTML(String s) {
+        int amp = s.indexOf('&');
+        if (amp < 0) return s;
+
+        StringBuilder unescaped = new StringBuilder(s.length());
+        int runStart = 0;
+        for (; amp >= 0; amp = s.indexOf('&', amp + 1)) {
+            for (char c : HTML_AND_BRACKETS_CHARS) {
+                String entity = HTML_AND_BRACKETS[c];
+                if (s.startsWith(entity, amp)) {
+                    unescaped.append(s, runStart, amp).append(c);
+                    runStart = amp + entity.length();
+                    amp = runStart - 1;
+                    break;
+                }
+            }
+        }
+        return unescaped.append(s, runStart, s.length()).toString();
+    }
+
+    /*
+     *  Writes the text appended to it escaped to out, e.g. for text streamed without being rendered.
+     */
+    static Appendable escapingHTML(Appendable out) {
+        return new Appendable() {
+            private final StringBuilder escaped = new StringBuilder();
+
+            @Override
+            public Appendable append(CharSequence csq) throws IOException {
+                return append(csq, 0, csq.length());
+            }
+
+            @Override
+            public Appendable append(CharSequence csq, int start, int end) throws IOException {
+                escaped.setLength(0);
+                escape(csq, start, end, HTML, escaped);
+                out.append(escaped);
+                return this;
+            }
+
+            @Override
+            public Appendable append(char c) throws IOException {
+                if (c < 128 && HTML[c] != null) {
+                    out.append(HTML[c]);
+                } else {
+                    out.append(c);
+                }
+                return this;
+            }
+        };
+    }
+}
@@ -0,0 +1,129 @@
+package demo.vencs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *  Renders the events of a parsed post to HTML through the BBCodeTag callbacks.
+ *  Only the content of a content dependent or hidden element is rendered into its own buffer, since BBCodeTag builds
+ *  the open and end tags from it, the other elements are written straight to the output.
+ *  The chars written are counted as they are written, not when a buffer is copied to its parent, and the limit on the
+ *  count fails the rendering right after the write that crosses it. Hidden content counts until its element is closed.
+ *  When escaping HTML, the text and the params are escaped as they are rendered, the tag callbacks get them escaped.
+ */
+class BBCodeHTMLRenderer implements BBCodeVisitor {
+    private final List<Frame> frames = new ArrayList<>();
+    // buffers of closed elements, reused for the next buffered elements
+    private final List<StringBuilder> spareBuffers = new ArrayList<>();
+    private StringBuilder content;
+    private boolean noParse;
+    private final long maxLength;
+    private final boolean escapeHTML;
+    private long length;
+    private long peakLength;
+    private BBCodeRenderReport report;
+    // the number of open elements that do not display their content, whose tags are not reported
+    private int hiddenDepth;
+
+    BBCodeHTMLRenderer(StringBuilder html) {
+        this(html, Long.MAX_VALUE, false);
+    }
+
+    BBCodeHTMLRenderer(StringBuilder html, long maxLength, boolean escapeHTML) {
+        this.content = html;
+        this.maxLength = maxLength;
+        this.escapeHTML = escapeHTML;
+    }
+
+    // records every open tag written, see BBCodeRenderReport
+    void setReport(BBCodeRenderReport report) {
+        this.report = report;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    // the most chars counted at any point, hidden content included
+    long getPeakLength() {
+        return peakLength;
+    }
+
+    @Override
+    public void text(CharSequence source, int start, int end) {
+        int contentLength = content.length();
+        String[] entities = BBCodeHTMLEscaper.entities(escapeHTML, noParse);
+        if (entities == null) {
+            content.append(source, start, end);
+        } else {
+            BBCodeHTMLEscaper.escape(source, start, end, entities, content);
+        }
+        count(content.length() - contentLength);
+    }
+
+    @Override
+    public void openElement(BBCodeTag tag, String param) {
+        if (escapeHTML) param = BBCodeHTMLEscaper.escapeHTML(param);
+        frames.add(new Frame(tag, param, content, noParse));
+        if (!tag.isDisplayContent()) hiddenDepth++;
+        if (tag.isContentDependent() || !tag.isDisplayContent()) {
+            content = spareBuffers.isEmpty() ? new StringBuilder() : spareBuffers.remove(spareBuffers.size() - 1);
+        } else {
+            count(writeOpenTag(tag, param, "", content));
+        }
+        noParse = tag.isNoParse();
+    }
+
+    @Override
+    public void closeElement() {
+        Frame frame = frames.remove(frames.size() - 1);
+        BBCodeTag tag = frame.tag;
+        if (!tag.isDisplayContent()) hiddenDepth--;
+        if (frame.parentContent == content) {
+            count(tag.writeEndTag(frame.param, "", content));
+        } else {
+            String elementContent = tag.isContentDependent() ? content.toString() : "";
+            count(writeOpenTag(tag, frame.param, elementContent, frame.parentContent));
+            if (tag.isDisplayContent()) {
+                frame.parentContent.append(content);
+            } else {
+                // the hidden content was counted, but it is not part of the output
+                length -= content.length();
+            }
+            count(tag.writeEndTag(frame.param, elementContent, frame.parentContent));
+            content.setLength(0);
+            spareBuffers.add(content);
+        }
+        content = frame.parentContent;
+        noParse = frame.parentNoParse;
+    }
+
+    private int writeOpenTag(BBCodeTag tag, String param, String elementContent, StringBuilder out) {
+        int start = out.length();
+        int written = tag.writeOpenTag(param, elementContent, out);
+        if (report != null && hiddenDepth == 0) report.tagWritten(tag, out, start, out.length());
+        return written;
+    }
+
+    private void count(int written) {
+        length += written;
+        peakLength = Math.max(peakLength, length);
+        if (length > maxLength) {
+            throw new BBCodeLimitExceededException("HTML longer than " + maxLength + " chars");
+        }
+    }
+
+    private static class Frame {
+        private final BBCodeTag tag;
+        private final String param;
+        private final StringBuilder parentContent;
+        private final boolean parentNoParse;
+
+        private Frame(BBCodeTag tag, String param, StringBuilder parentContent, boolean parentNoParse) {
+            this.tag = tag;
+            this.param = param;
+            this.parentContent = parentContent;
+            this.parentNoParse = parentNoParse;
+        }
+    }
+}
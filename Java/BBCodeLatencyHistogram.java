@@ -0,0 +1,75 @@
+package demo.vencs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ *  Latencies in nanoseconds counted in buckets of four per power of two, so a bucket is at most a quarter of its
+ *  lower bound wide and percentiles are accurate to within 25%. Recording is lock free.
+ */
+class BBCodeLatencyHistogram {
+    private static final int SUB_BUCKETS = 4;
+    static final int BUCKET_COUNT = 64 * SUB_BUCKETS;
+
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    void record(long nanos) {
+        maxNanos.accumulateAndGet(nanos, Math::max);
+        counts.incrementAndGet(bucket(nanos));
+    }
+
+    long[] getCounts() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    double getMaxMicros() {
+        return maxNanos.get() / 1000.0;
+    }
+
+    // the upper bound of the bucket holding the given share of the latencies
+    double percentileMicros(double share) {
+        long[] snapshot = getCounts();
+        long total = 0;
+        for (long count : snapshot) {
+            total += count;
+        }
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(share * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundNanos(i), maxNanos.get()) / 1000.0;
+            }
+        }
+        return maxNanos.get() / 1000.0;
+    }
+
+    void reset() {
+        maxNanos.set(0);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+    }
+
+    // the highest latency counted in a bucket
+    static long upperBoundNanos(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + 1;
+        if (exponent >= 62) return Long.MAX_VALUE;
+        return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << (exponent - 2)) - 1;
+    }
+
+    // a bucket per value below SUB_BUCKETS, then SUB_BUCKETS buckets per power of two
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) return (int) Math.max(0, nanos);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        return (exponent - 1) * SUB_BUCKETS + (int) (nanos >>> (exponent - 2)) % SUB_BUCKETS;
+    }
+}
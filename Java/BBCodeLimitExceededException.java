@@ -0,0 +1,12 @@
+package demo.vencs;
+
+/*
+ *  Thrown as soon as a post goes over one of the limits of its parser, see BBCodeParser.Builder.
+ */
+public class BBCodeLimitExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    BBCodeLimitExceededException(String message) {
+        super(message);
+    }
+}
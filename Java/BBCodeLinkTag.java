@@ -0,0 +1,98 @@
+package demo.vencs;
+
+/*
+ *  The url, img and email tags. The open tag is written straight into the HTML, the link checked, percent-encoded
+ *  and escaped while it is copied, instead of being built as strings of its own first. An invalid link is written
+ *  as the invalid open tag instead, e.g. "<a>".
+ */
+class BBCodeLinkTag extends BBCodeTag {
+    enum Kind { URL, IMAGE, EMAIL }
+
+    private final Kind kind;
+    private final String before;
+    private final String after;
+    private final String invalid;
+
+    BBCodeLinkTag(String tagName, Kind kind, String before, String after, String invalid) {
+        super(tagName);
+        this.kind = kind;
+        this.before = before;
+        this.after = after;
+        this.invalid = invalid;
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    // the link as it is written in the post: the param of url, the content of img, the param or else the content of email
+    String getLink(String param, String content) {
+        switch (kind) {
+            case URL:
+                return param;
+            case IMAGE:
+                return content;
+            default:
+                return param.isEmpty() ? content : param;
+        }
+    }
+
+    @Override
+    String describeRendering() {
+        return super.describeRendering() + ':' + kind + ':' + before.length() + '=' + before + ':' + after.length() + '='
+                + after + ':' + invalid.length() + '=' + invalid;
+    }
+
+    // the link writeOpenTag wrote to html[start, end), null when it wrote the invalid open tag
+    String getWrittenLink(CharSequence html, int start, int end) {
+        if (end - start == invalid.length() && invalid.contentEquals(html.subSequence(start, end))) return null;
+        return html.subSequence(start + before.length(), end - after.length()).toString();
+    }
+
+    @Override
+    public String getOpenTag(String param, String content) {
+        StringBuilder html = new StringBuilder(before.length() + after.length() + 64);
+        writeOpenTag(param, content, html);
+        return html.toString();
+    }
+
+    @Override
+    int writeOpenTag(String param, String content, StringBuilder html) {
+        int start = html.length();
+        html.append(before);
+        String link = getLink(param, content);
+        boolean valid;
+        if (kind != Kind.EMAIL) {
+            valid = BBCodeURLEncoder.writeURL(link, html);
+        } else if (valid = BBCodeParamValidator.isValidEmail(link)) {
+            BBCodeHTMLEscaper.escape(link, 0, link.length(), BBCodeHTMLEscaper.QUOTES, html);
+        }
+        if (valid) {
+            html.append(after);
+        } else {
+            html.setLength(start);
+            html.append(invalid);
+        }
+        return html.length() - start;
+    }
+
+    @Override
+    int writeOpenTag(String param, String content, BBCodeUTF8Buffer html) {
+        int start = html.length();
+        html.write(before);
+        String link = getLink(param, content);
+        boolean valid;
+        if (kind != Kind.EMAIL) {
+            valid = BBCodeURLEncoder.writeURL(link, html);
+        } else if (valid = BBCodeParamValidator.isValidEmail(link)) {
+            BBCodeHTMLEscaper.escape(link, 0, link.length(), BBCodeHTMLEscaper.QUOTES, html);
+        }
+        if (valid) {
+            html.write(after);
+        } else {
+            html.setLength(start);
+            html.write(invalid);
+        }
+        return html.length() - start;
+    }
+}
@@ -0,0 +1,122 @@
+package demo.vencs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *  A node of the parsed BBCode tree. A text node refers to a span of the source text, an element node refers to the
+ *  span of its open tag so that it can be written back as it was when the tag turns out to be never closed.
+ */
+class BBCodeNode {
+    private final BBCodeTag tag;
+    private final String param;
+    private final CharSequence source;
+    private final int start;
+    private final int end;
+    private final List<BBCodeNode> children;
+    private boolean closed;
+    private int outerEnd;
+
+    private BBCodeNode(BBCodeTag tag, String param, CharSequence source, int start, int end) {
+        this.tag = tag;
+        this.param = param;
+        this.source = source;
+        this.start = start;
+        this.end = end;
+        this.children = tag == null ? null : new ArrayList<>();
+        this.outerEnd = end;
+    }
+
+    static BBCodeNode text(CharSequence source, int start, int end) {
+        return new BBCodeNode(null, null, source, start, end);
+    }
+
+    static BBCodeNode element(BBCodeTag tag, String param, CharSequence source, int start, int end) {
+        return new BBCodeNode(tag, param, source, start, end);
+    }
+
+    /*
+     *  Reports the nodes to the visitor in document order without recursion, so a deeply nested post cannot
+     *  overflow the stack. An element which is never closed is reported as the text of its open tag.
+     */
+    static void walk(List<BBCodeNode> nodes, BBCodeVisitor visitor) {
+        List<List<BBCodeNode>> childLists = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        List<BBCodeNode> children = nodes;
+        int index = 0;
+        while (true) {
+            if (index < children.size()) {
+                BBCodeNode node = children.get(index++);
+                if (node.isText()) {
+                    visitor.text(node.source, node.start, node.end);
+                    continue;
+                }
+
+                if (node.closed) {
+                    visitor.openElement(node.tag, node.param);
+                } else {
+                    visitor.text(node.source, node.start, node.end);
+                }
+                childLists.add(children);
+                indexes.add(index);
+                children = node.children;
+                index = 0;
+            } else {
+                if (childLists.isEmpty()) break;
+
+                children = childLists.remove(childLists.size() - 1);
+                index = indexes.remove(indexes.size() - 1);
+                if (children.get(index - 1).closed) {
+                    visitor.closeElement();
+                }
+            }
+        }
+    }
+
+    boolean isText() {
+        return tag == null;
+    }
+
+    BBCodeTag getTag() {
+        return tag;
+    }
+
+    String getParam() {
+        return param;
+    }
+
+    CharSequence getSource() {
+        return source;
+    }
+
+    int getStart() {
+        return start;
+    }
+
+    int getEnd() {
+        return end;
+    }
+
+    List<BBCodeNode> getChildren() {
+        return children;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    void setClosed(boolean closed) {
+        this.closed = closed;
+    }
+
+    /*
+     *  The end of the whole node in the source, for an element this includes its content and its closing tag.
+     */
+    int getOuterEnd() {
+        return outerEnd;
+    }
+
+    void setOuterEnd(int outerEnd) {
+        this.outerEnd = outerEnd;
+    }
+}
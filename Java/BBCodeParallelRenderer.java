@@ -0,0 +1,99 @@
+package demo.vencs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+
+/*
+ *  Renders a large post on the fork-join pool while it is still being parsed. The top-level nodes handed over by a
+ *  streaming build are grouped into chunks of about CHUNK_LENGTH chars of source, that is the chunks are split only
+ *  between closed top-level elements and text outside of any element, and each chunk is rendered by a task of its own.
+ *  The renderer keeps no state from one top-level node to the next, so the chunks appended in order are the HTML
+ *  of the sequential rendering. The output limit is checked as the sequential renderer checks it, against the chars
+ *  of the chunks before plus the peak count of the chunk, which includes hidden content while it is rendered.
+ *  Tasks are forked into the pool of the calling task, or the common pool, so a post rendered from a task of
+ *  parseAllToHTML helps with its own chunks instead of blocking a worker.
+ */
+class BBCodeParallelRenderer implements Consumer<BBCodeNode> {
+    // shorter posts render faster on the calling thread
+    private static final int MIN_LENGTH = 1 << 18;
+    private static final int CHUNK_LENGTH = 1 << 15;
+
+    private final long maxLength;
+    private final boolean escapeHTML;
+    private final List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+    private List<BBCodeNode> chunk = new ArrayList<>();
+    private int chunkLength;
+
+    BBCodeParallelRenderer(long maxLength, boolean escapeHTML) {
+        this.maxLength = maxLength;
+        this.escapeHTML = escapeHTML;
+    }
+
+    // false when the post is too short to be worth splitting, or there is no other core to render on
+    static boolean isWorthwhile(int textLength) {
+        return textLength >= MIN_LENGTH && Runtime.getRuntime().availableProcessors() > 1;
+    }
+
+    @Override
+    public void accept(BBCodeNode node) {
+        chunk.add(node);
+        chunkLength += (node.isText() ? node.getEnd() : node.getOuterEnd()) - node.getStart();
+        if (chunkLength >= CHUNK_LENGTH) {
+            fork();
+        }
+    }
+
+    /*
+     *  Appends the HTML of the chunks to html once the build is done, and throws what the rendering of a chunk threw.
+     */
+    void finish(StringBuilder html) {
+        fork();
+        long length = 0;
+        for (ForkJoinTask<Chunk> task : tasks) {
+            Chunk rendered = task.join();
+            // the sequential renderer counts hidden content against the chars written before it as well
+            if (length + rendered.peakLength > maxLength) {
+                throw new BBCodeLimitExceededException("HTML longer than " + maxLength + " chars");
+            }
+            length += rendered.html.length();
+            html.ensureCapacity(html.length() + rendered.html.length());
+            html.append(rendered.html);
+        }
+    }
+
+    // drops the chunks not rendered yet after a failed build or rendering
+    void cancel() {
+        for (ForkJoinTask<Chunk> task : tasks) {
+            task.cancel(false);
+        }
+    }
+
+    private void fork() {
+        if (chunk.isEmpty()) return;
+        List<BBCodeNode> nodes = chunk;
+        int length = chunkLength;
+        tasks.add(ForkJoinTask.adapt(() -> render(nodes, length)).fork());
+        chunk = new ArrayList<>();
+        chunkLength = 0;
+    }
+
+    private Chunk render(List<BBCodeNode> nodes, int length) {
+        StringBuilder html = new StringBuilder(length + (length >> 3));
+        BBCodeHTMLRenderer renderer = new BBCodeHTMLRenderer(html, maxLength, escapeHTML);
+        BBCodeNode.walk(nodes, renderer);
+        return new Chunk(html, renderer.getPeakLength());
+    }
+
+    private static class Chunk {
+        private final StringBuilder html;
+        // the most chars counted at any point of the chunk, hidden content included
+        private final long peakLength;
+
+        private Chunk(StringBuilder html, long peakLength) {
+            this.html = html;
+            this.peakLength = peakLength;
+        }
+    }
+}
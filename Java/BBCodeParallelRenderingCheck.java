@@ -0,0 +1,79 @@
+package demo.vencs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ *  Checks that the chunked rendering of large posts on the fork-join pool gives the HTML of the sequential rendering,
+ *  with and without HTML escaping and with output limits around the length of the HTML. The chunks are rendered in
+ *  parallel whatever the number of cores, and the check fails on the first post whose HTML differs.
+ *  Usage: java demo.vencs.BBCodeParallelRenderingCheck [post count]
+ */
+public class BBCodeParallelRenderingCheck {
+    private static final String[] fragments = {
+            "[b]", "[/b]", "[i]", "[/i]", "[quote]", "[/quote]", "[code]", "[/code]", "[list]", "[*]", "[/list]",
+            "[url=http://example.com/文]", "[/url]", "[img]", "[/img]", "[email]", "[/email]",
+            "[table][tr][td]", "[/td][/tr][/table]", "[color=red]", "[/color]", "[size=3]", "[/size]",
+            "text ", "more text\n", "\n\n", "<&\"'>", "a@b.com", "[", "]", "é😀",
+    };
+
+    public static void main(String[] args) {
+        int postCount = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        Random random = new Random(42);
+        List<String> posts = new ArrayList<>();
+        // hidden content counted against the text before it, rendered in an earlier chunk
+        posts.add("[b]" + repeat("x", 300_000) + "[/b][img]" + repeat(" ", 50_000) + "[/img]");
+        for (int i = 0; i < postCount; i++) {
+            StringBuilder post = new StringBuilder();
+            int length = 200_000 + random.nextInt(600_000);
+            while (post.length() < length) {
+                post.append(fragments[random.nextInt(fragments.length)]);
+            }
+            posts.add(post.toString());
+        }
+
+        BBCodeParser parser = BBCodeParser.getInstance();
+        BBCodeParser escapingParser = BBCodeParser.builder().withHTMLEscaping().build();
+        for (String post : posts) {
+            check(parser, false, post);
+            check(escapingParser, true, post);
+            int htmlLength = parser.parseToHTMLAndText(post).getHTML().length();
+            for (long maxOutputLength : new long[] {htmlLength, htmlLength - 1, htmlLength / 2, 300_030}) {
+                check(BBCodeParser.builder().withMaxOutputLength(maxOutputLength).build(), false, post);
+            }
+        }
+        System.out.println(posts.size() + " posts rendered alike");
+    }
+
+    private static void check(BBCodeParser parser, boolean escapeHTML, String post) {
+        // parseToHTMLAndText always renders on the calling thread
+        String expected = parser.parseToHTMLAndText(post).getHTML();
+        String actual = renderInParallel(parser, escapeHTML, post);
+        if (!expected.equals(actual)) {
+            throw new AssertionError("HTML of " + expected.length() + " chars rendered as " + actual.length()
+                    + " chars in parallel, post starting with " + post.substring(0, Math.min(80, post.length())));
+        }
+    }
+
+    private static String renderInParallel(BBCodeParser parser, boolean escapeHTML, String post) {
+        BBCodeParallelRenderer renderer = new BBCodeParallelRenderer(parser.getMaxOutputLength(), escapeHTML);
+        StringBuilder html = new StringBuilder();
+        try {
+            parser.newTreeBuilder(post).build(renderer);
+            renderer.finish(html);
+            return html.toString();
+        } catch (RuntimeException e) {
+            renderer.cancel();
+            return escapeHTML ? BBCodeHTMLEscaper.escapeHTML(post) : post;
+        }
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder repeated = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            repeated.append(s);
+        }
+        return repeated.toString();
+    }
+}
@@ -0,0 +1,154 @@
+package demo.vencs;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/*
+ *  Hand-written validators for the params of the color, size and email tags, each a single scan of the value.
+ *  The normalized color and size values are memoized in small direct-mapped tables, since the same few values are
+ *  used over and over. The tables are shared by all threads without locking, their entries are immutable,
+ *  so a racing thread can only miss an entry, never see a broken one.
+ */
+class BBCodeParamValidator {
+    private static final String DEFAULT_COLOR = "black";
+    private static final String DEFAULT_SIZE = "14";
+    private static final int MEMO_SIZE = 256;
+
+    private static final Set<String> colorNames = new HashSet<>(Arrays.asList((
+            "aliceblue|antiquewhite|aqua|aquamarine|azure|beige|bisque|black|blanchedalmond|blue|blueviolet|brown|" +
+            "burlywood|cadetblue|chartreuse|chocolate|coral|cornflowerblue|cornsilk|crimson|cyan|darkblue|darkcyan|" +
+            "darkgoldenrod|darkgray|darkgreen|darkkhaki|darkmagenta|darkolivegreen|darkorange|darkorchid|darkred|" +
+            "darksalmon|darkseagreen|darkslateblue|darkslategray|darkturquoise|darkviolet|deeppink|deepskyblue|" +
+            "dimgray|dodgerblue|firebrick|floralwhite|forestgreen|fuchsia|gainsboro|ghostwhite|gold|goldenrod|gray|" +
+            "green|greenyellow|honeydew|hotpink|indianred|indigo|ivory|khaki|lavender|lavenderblush|lawngreen|" +
+            "lemonchiffon|lightblue|lightcoral|lightcyan|lightgoldenrodyellow|lightgray|lightgreen|lightpink|" +
+            "lightsalmon|lightseagreen|lightskyblue|lightslategray|lightsteelblue|lightyellow|lime|limegreen|linen|" +
+            "magenta|maroon|mediumaquamarine|mediumblue|mediumorchid|mediumpurple|mediumseagreen|mediumslateblue|" +
+            "mediumspringgreen|mediumturquoise|mediumvioletred|midnightblue|mintcream|mistyrose|moccasin|" +
+            "navajowhite|navy|oldlace|olive|olivedrab|orange|orangered|orchid|palegoldenrod|palegreen|" +
+            "paleturquoise|palevioletred|papayawhip|peachpuff|peru|pink|plum|powderblue|purple|red|rosybrown|" +
+            "royalblue|saddlebrown|salmon|sandybrown|seagreen|seashell|sienna|silver|skyblue|slateblue|slategray|" +
+            "snow|springgreen|steelblue|tan|teal|thistle|tomato|turquoise|violet|wheat|white|whitesmoke|yellow|" +
+            "yellowgreen").split("\\|")));
+
+    private static final MemoEntry[] colorMemo = new MemoEntry[MEMO_SIZE];
+    private static final MemoEntry[] sizeMemo = new MemoEntry[MEMO_SIZE];
+
+    private BBCodeParamValidator() {
+    }
+
+    /*
+     *  Returns the color as a CSS color name, rgb(r, g, b[, a]) or #rrggbb, or black when it is none of them.
+     */
+    static String normalizeColor(String param) {
+        MemoEntry entry = colorMemo[param.hashCode() & (MEMO_SIZE - 1)];
+        if (entry != null && entry.key.equals(param)) return entry.value;
+
+        String colorCode = param.toLowerCase(Locale.ROOT);
+        if (!colorNames.contains(colorCode) && !isRGBColor(colorCode)) {
+            if (!isHexColor(colorCode)) {
+                colorCode = DEFAULT_COLOR;
+            } else if (colorCode.charAt(0) != '#') {
+                colorCode = "#" + colorCode;
+            }
+        }
+        colorMemo[param.hashCode() & (MEMO_SIZE - 1)] = new MemoEntry(param, colorCode);
+        return colorCode;
+    }
+
+    /*
+     *  Returns the first integer in the param, or the default size when it has none.
+     */
+    static String normalizeSize(String param) {
+        MemoEntry entry = sizeMemo[param.hashCode() & (MEMO_SIZE - 1)];
+        if (entry != null && entry.key.equals(param)) return entry.value;
+
+        String size = DEFAULT_SIZE;
+        for (int i = 0; i < param.length(); i++) {
+            if (isDigit(param.charAt(i))) {
+                int start = i > 0 && param.charAt(i - 1) == '-' ? i - 1 : i;
+                int end = i;
+                while (end < param.length() && isDigit(param.charAt(end))) {
+                    end++;
+                }
+                size = param.substring(start, end);
+                break;
+            }
+        }
+        sizeMemo[param.hashCode() & (MEMO_SIZE - 1)] = new MemoEntry(param, size);
+        return size;
+    }
+
+    /*
+     *  True when the text holds something like an address: name@domain.tld, where none of the parts has a whitespace or @.
+     */
+    static boolean isValidEmail(String email) {
+        int runStart = 0;
+        for (int i = 0; i <= email.length(); i++) {
+            if (i < email.length() && !isWhitespace(email.charAt(i)) && email.charAt(i) != '@') continue;
+
+            // email[runStart, i) is a run without whitespace or @, it is a domain when it follows name@
+            if (runStart >= 2 && email.charAt(runStart - 1) == '@' && !isWhitespace(email.charAt(runStart - 2))
+                    && email.charAt(runStart - 2) != '@') {
+                int dot = email.lastIndexOf('.', i - 2);
+                if (dot > runStart) return true;
+            }
+            runStart = i + 1;
+        }
+        return false;
+    }
+
+    private static boolean isRGBColor(String colorCode) {
+        if (!colorCode.startsWith("rg")) return false;
+
+        int i = 2;
+        if (i < colorCode.length() && colorCode.charAt(i) == 'b') i++;
+        if (i >= colorCode.length() || colorCode.charAt(i++) != '(') return false;
+        for (int component = 0; component < 4; component++) {
+            if (component > 0) {
+                if (component == 3 && i < colorCode.length() && colorCode.charAt(i) == ')') break;
+                if (i >= colorCode.length() || colorCode.charAt(i++) != ',') return false;
+                while (i < colorCode.length() && isWhitespace(colorCode.charAt(i))) {
+                    i++;
+                }
+            }
+            int digitStart = i;
+            while (i < colorCode.length() && isDigit(colorCode.charAt(i))) {
+                i++;
+            }
+            if (i == digitStart) return false;
+        }
+        return i == colorCode.length() - 1 && colorCode.charAt(i) == ')';
+    }
+
+    private static boolean isHexColor(String colorCode) {
+        int start = colorCode.startsWith("#") ? 1 : 0;
+        if (colorCode.length() - start != 6) return false;
+        for (int i = start; i < colorCode.length(); i++) {
+            char c = colorCode.charAt(i);
+            if (!isDigit(c) && (c < 'a' || c > 'f') && (c < 'A' || c > 'F')) return false;
+        }
+        return true;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // \s of java.util.regex
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static class MemoEntry {
+        private final String key;
+        private final String value;
+
+        private MemoEntry(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package demo.vencs;
+
+/*
+ *  The cost and outcome of rendering a single post, see BBCodeParserListener.
+ *  The times are split into parsing the post into its tree and rendering the tree. When parsing fails,
+ *  all of the time is parse time.
+ */
+public class BBCodeParseEvent {
+    public enum Operation {
+        HTML,
+        PLAIN_TEXT,
+        // UTF-8 in and out, the lengths are in bytes
+        UTF8_HTML
+    }
+
+    public enum Outcome {
+        RENDERED,
+        // the post went over a limit of the parser and the post itself was returned
+        LIMIT_EXCEEDED,
+        // a tag callback failed and the post itself was returned
+        FAILED
+    }
+
+    private final Operation operation;
+    private final Outcome outcome;
+    private final int inputLength;
+    private final int outputLength;
+    private final int elementCount;
+    private final long parseNanos;
+    private final long renderNanos;
+
+    BBCodeParseEvent(Operation operation, Outcome outcome, int inputLength, int outputLength, int elementCount,
+                     long parseNanos, long renderNanos) {
+        this.operation = operation;
+        this.outcome = outcome;
+        this.inputLength = inputLength;
+        this.outputLength = outputLength;
+        this.elementCount = elementCount;
+        this.parseNanos = parseNanos;
+        this.renderNanos = renderNanos;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    public int getInputLength() {
+        return inputLength;
+    }
+
+    public int getOutputLength() {
+        return outputLength;
+    }
+
+    /*
+     *  The number of elements opened while parsing, noParse elements included.
+     */
+    public int getElementCount() {
+        return elementCount;
+    }
+
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    public long getRenderNanos() {
+        return renderNanos;
+    }
+
+    public long getTotalNanos() {
+        return parseNanos + renderNanos;
+    }
+
+    @Override
+    public String toString() {
+        return operation + " " + outcome + ": " + inputLength + " -> " + outputLength + " chars, "
+                + elementCount + " elements, parse " + parseNanos + " ns, render " + renderNanos + " ns";
+    }
+}
@@ -1,61 +1,75 @@
 package demo.vencs;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 public class BBCodeParser {
-    private static HashMap<String, BBCodeTag> tagMap;
-	private static Pattern unicodePattern;
-    private static Pattern urlPattern;
-    private static Pattern colorNamePattern;
-    private static Pattern colorCodePattern;
-    private static Pattern colorRGBPattern;
-    private static Pattern emailPattern;
-    private static Pattern bbclPattern;
-    private static Pattern parsedTagPattern;
-    private static Pattern noParsedTagPattern;
-    private static Pattern checkDepthsPattern;
-    private static Pattern subDepthsComparePattern;
-    private static Pattern subDepthsPattern;
+    private static final int MAX_SCRATCH_CAPACITY = 1 << 16;
+    private static final ThreadLocal<StringBuilder> scratchBuffers = ThreadLocal.withInitial(StringBuilder::new);
+    private static final ThreadLocal<BBCodeUTF8Buffer> utf8ScratchBuffers =
+            ThreadLocal.withInitial(() -> new BBCodeUTF8Buffer(1024));
 
-    private BBCodeParser() {
-        initTags();
-
-        unicodePattern = Pattern.compile("[\\u0080-\\u9fff]+");
-        urlPattern = Pattern.compile("^(?:https?):(?:\\/{1,3}|\\\\{1})[-a-zA-Z0-9:;,@#!%&()~_?\\+=\\/\\\\\\.]*$");
-        colorNamePattern = Pattern.compile("^(?:aliceblue|antiquewhite|aqua|aquamarine|azure|beige|bisque|black|blanchedalmond|blue|blueviolet|brown|burlywood|cadetblue|chartreuse|chocolate|coral|cornflowerblue|cornsilk|crimson|cyan|darkblue|darkcyan|darkgoldenrod|darkgray|darkgreen|darkkhaki|darkmagenta|darkolivegreen|darkorange|darkorchid|darkred|darksalmon|darkseagreen|darkslateblue|darkslategray|darkturquoise|darkviolet|deeppink|deepskyblue|dimgray|dodgerblue|firebrick|floralwhite|forestgreen|fuchsia|gainsboro|ghostwhite|gold|goldenrod|gray|green|greenyellow|honeydew|hotpink|indianred|indigo|ivory|khaki|lavender|lavenderblush|lawngreen|lemonchiffon|lightblue|lightcoral|lightcyan|lightgoldenrodyellow|lightgray|lightgreen|lightpink|lightsalmon|lightseagreen|lightskyblue|lightslategray|lightsteelblue|lightyellow|lime|limegreen|linen|magenta|maroon|mediumaquamarine|mediumblue|mediumorchid|mediumpurple|mediumseagreen|mediumslateblue|mediumspringgreen|mediumturquoise|mediumvioletred|midnightblue|mintcream|mistyrose|moccasin|navajowhite|navy|oldlace|olive|olivedrab|orange|orangered|orchid|palegoldenrod|palegreen|paleturquoise|palevioletred|papayawhip|peachpuff|peru|pink|plum|powderblue|purple|red|rosybrown|royalblue|saddlebrown|salmon|sandybrown|seagreen|seashell|sienna|silver|skyblue|slateblue|slategray|snow|springgreen|steelblue|tan|teal|thistle|tomato|turquoise|violet|wheat|white|whitesmoke|yellow|yellowgreen)$");
-        colorCodePattern = Pattern.compile("^#?[a-fA-F0-9]{6}$");
-        colorRGBPattern = Pattern.compile("^rgb?\\((\\d+),\\s*(\\d+),\\s*(\\d+)(?:,\\s*(\\d+))?\\)$");
-        emailPattern = Pattern.compile("[^\\s@]+@[^\\s@]+\\.[^\\s@]+");
-
-        StringBuilder parsedTagList = new StringBuilder();
-        StringBuilder noParsedTagList = new StringBuilder();
-        for (BBCodeTag bbCodeTag : tagMap.values()) {
-            String tagName = bbCodeTag.getTagName();
-            if (tagName.equals("*")) {
-                tagName = "\\" + tagName;
-            }
-            parsedTagList.append(tagName + "|");
+    /*
+     *  The parser is shared by all threads, so everything it is built from is final and never changed after construction.
+     */
+    private final BBCodeTagRegistry registry;
+    private final BBCodeBinaryFormat binaryFormat;
+    private final int maxDepth;
+    private final int maxTags;
+    private final long maxOutputLength;
+    private final boolean escapeHTML;
+    // salts the keys of the render store, so parsers rendering differently do not share entries
+    private final long fingerprint;
+    private volatile BBCodeRenderCache renderCache;
+    private volatile BBCodeRenderStore renderStore;
+    private volatile BBCodeParserListener listener;
 
-            if (bbCodeTag.isNoParse()) {
-                noParsedTagList.append(tagName + "|");
-            }
-        }
-        if (parsedTagList.length() > 0) {
-            parsedTagList.setLength(parsedTagList.length() - 1);
-        }
-        if (noParsedTagList.length() > 0) {
-            noParsedTagList.setLength(noParsedTagList.length() - 1);
-        }
+    private BBCodeParser() {
+        registry = new BBCodeTagRegistry(initTags().values());
+        binaryFormat = new BBCodeBinaryFormat(registry);
+        maxDepth = Integer.MAX_VALUE;
+        maxTags = Integer.MAX_VALUE;
+        maxOutputLength = Long.MAX_VALUE;
+        escapeHTML = false;
+        fingerprint = fingerprint();
+    }
 
-        bbclPattern = Pattern.compile("<bbcl=([0-9]+) (" + parsedTagList + ")([ =][^>]*?)?>((?:.|[\\r\\n])*?)<bbcl=\\1 \\/\\2>");
-        parsedTagPattern = Pattern.compile("\\[(" + parsedTagList + ")([ =][^\\]]*?)?\\]([^\\[]*?)\\[\\/\\1\\]");
-        noParsedTagPattern = Pattern.compile("\\[(" + noParsedTagList + ")([ =][^\\]]*?)?\\]([\\s\\S]*?)\\[\\/\\1\\]");
+    private BBCodeParser(Builder builder) {
+        registry = new BBCodeTagRegistry(builder.tags.values());
+        binaryFormat = new BBCodeBinaryFormat(registry);
+        maxDepth = builder.maxDepth;
+        maxTags = builder.maxTags;
+        maxOutputLength = builder.maxOutputLength;
+        escapeHTML = builder.escapeHTML;
+        fingerprint = fingerprint();
+    }
 
-        checkDepthsPattern = Pattern.compile("\\<([^\\>][^\\>]*?)\\>");
-        subDepthsComparePattern = Pattern.compile("^bbcl=([0-9]+) ");
-        subDepthsPattern = Pattern.compile("^(bbcl=)([0-9]+)");
+    // a hash of the options and of how each tag renders, see BBCodeTag#describeRendering
+    private long fingerprint() {
+        StringBuilder description = new StringBuilder();
+        description.append(maxDepth).append(';').append(maxTags).append(';').append(maxOutputLength).append(';')
+                .append(escapeHTML);
+        for (BBCodeTag tag : registry.getTags()) {
+            description.append(';').append(tag.describeRendering());
+        }
+        BBCodeContentKey key = BBCodeContentKey.of(description.toString());
+        return key.high ^ key.low;
     }
 
     private static class LazyHolder {
@@ -66,582 +80,857 @@ public class BBCodeParser {
         return LazyHolder.instance;
     }
 
-    private void initTags() {
-        tagMap = new HashMap<>();
-
-        addTagToMap("b");
-        addTagToMap("i");
-        addTagToMap("u");
-        addTagToMap("s");
-        addTagToMap("sub");
-        addTagToMap("sup");
-
-        addTagToMap("h2");
-        addTagToMap("h3");
+    /*
+     *  Starts a parser with its own tag set, e.g. a restricted set for signatures, beginning with the tags of getInstance().
+     */
+    public static Builder builder() {
+        return getInstance().toBuilder();
+    }
 
-        BBCodeTag codeTag = new BBCodeTag("code") {
-            @Override
-            public String getOpenTag(String param, String content) {
-                return "<pre>";
-            }
+    /*
+     *  Starts a parser with the tags, limits and options of this one, e.g. to change the tag set of a running site.
+     */
+    public Builder toBuilder() {
+        return new Builder(this);
+    }
 
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</pre>";
-            }
-        };
+    // the default tags, only needed until the registry is built from them
+    private static Map<String, BBCodeTag> initTags() {
+        Map<String, BBCodeTag> tagMap = new HashMap<>();
+        addTagToMap(tagMap, "b");
+        addTagToMap(tagMap, "i");
+        addTagToMap(tagMap, "u");
+        addTagToMap(tagMap, "s");
+        addTagToMap(tagMap, "sub");
+        addTagToMap(tagMap, "sup");
+
+        addTagToMap(tagMap, "h2");
+        addTagToMap(tagMap, "h3");
+
+        BBCodeTag codeTag = new BBCodeTag("code");
+        codeTag.setOpenTemplate("<pre>");
+        codeTag.setEndTemplate("</pre>");
         codeTag.setNoParse(true);
-        addTagToMap(codeTag);
+        addTagToMap(tagMap, codeTag);
 
-        addTagToMap("table");
-        addTagToMap("tbody");
-        addTagToMap("tfoot");
-        addTagToMap("thead");
-        addTagToMap("th");
-        addTagToMap("tr");
-        addTagToMap("td");
+        addTagToMap(tagMap, "table");
+        addTagToMap(tagMap, "tbody");
+        addTagToMap(tagMap, "tfoot");
+        addTagToMap(tagMap, "thead");
+        addTagToMap(tagMap, "th");
+        addTagToMap(tagMap, "tr");
+        addTagToMap(tagMap, "td");
 
         BBCodeTag olTag = new BBCodeTag("ol") {
             @Override
-            public String getOpenTag(String param, String content) {
-                if (param.isEmpty()) return "<ol>";
-                return "<ol style=\"list-style-type:" + escapeQuote(param) + "\">";
+            protected String formatParam(String param) {
+                return escapeQuote(param);
             }
         };
-        addTagToMap(olTag);
+        olTag.setOpenTemplate("<ol style=\"list-style-type:{param}\">");
+        olTag.setOpenTemplateWithoutParam("<ol>");
+        addTagToMap(tagMap, olTag);
 
         BBCodeTag ulTag = new BBCodeTag("ul") {
             @Override
-            public String getOpenTag(String param, String content) {
-                if (param.isEmpty()) return "<ul>";
-                return "<ul style=\"list-style-type:" + escapeQuote(param) + "\">";
+            protected String formatParam(String param) {
+                return escapeQuote(param);
             }
         };
-        addTagToMap(ulTag);
+        ulTag.setOpenTemplate("<ul style=\"list-style-type:{param}\">");
+        ulTag.setOpenTemplateWithoutParam("<ul>");
+        addTagToMap(tagMap, ulTag);
 
         BBCodeTag listTag = new BBCodeTag("list") {
             @Override
-            public String getOpenTag(String param, String content) {
-                if (param.isEmpty()) return "<ul>";
-                return "<ul style=\"list-style-type:" + escapeQuote(param) + "\">";
-            }
-
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</ul>";
+            protected String formatParam(String param) {
+                return escapeQuote(param);
             }
         };
-        addTagToMap(listTag);
+        listTag.setOpenTemplate("<ul style=\"list-style-type:{param}\">");
+        listTag.setOpenTemplateWithoutParam("<ul>");
+        listTag.setEndTemplate("</ul>");
+        addTagToMap(tagMap, listTag);
 
-        addTagToMap("li");
+        addTagToMap(tagMap, "li");
 
         BBCodeTag colorTag = new BBCodeTag("color") {
             @Override
-            public String getOpenTag(String param, String content) {
-                String colorCode = param.toLowerCase();
-                colorCode = getCorrectColorCode(colorCode);
-                return "<span style=\"color:" + colorCode + "\">";
-            }
-
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</span>";
+            protected String formatParam(String param) {
+                return BBCodeParamValidator.normalizeColor(param);
             }
         };
-        addTagToMap(colorTag);
+        colorTag.setOpenTemplate("<span style=\"color:{param}\">");
+        colorTag.setEndTemplate("</span>");
+        addTagToMap(tagMap, colorTag);
 
         BBCodeTag backgroundColorTag = new BBCodeTag("bgcolor") {
             @Override
-            public String getOpenTag(String param, String content) {
-                String colorCode = param.toLowerCase();
-                colorCode = getCorrectColorCode(colorCode);
-                return "<span style=\"background-color:" + colorCode + "\">";
-            }
-
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</span>";
+            protected String formatParam(String param) {
+                return BBCodeParamValidator.normalizeColor(param);
             }
         };
-        addTagToMap(backgroundColorTag);
+        backgroundColorTag.setOpenTemplate("<span style=\"background-color:{param}\">");
+        backgroundColorTag.setEndTemplate("</span>");
+        addTagToMap(tagMap, backgroundColorTag);
 
         BBCodeTag fontTag = new BBCodeTag("font") {
             @Override
-            public String getOpenTag(String param, String content) {
-                if (param.isEmpty()) {
-                    param = "'Open Sans','Noto Sans CJK TC','Noto Sans CJK SC','Noto Sans CJK JP','Noto Sans CJK KR','Lucida Grande',Tahoma,arial,sans-serif;";
-                }
-                return "<span style=\"font-family:" + escapeQuote(param) + "\">";
-            }
-
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</span>";
+            protected String formatParam(String param) {
+                return escapeQuote(param);
             }
         };
-        addTagToMap(fontTag);
+        fontTag.setOpenTemplate("<span style=\"font-family:{param}\">");
+        fontTag.setOpenTemplateWithoutParam("<span style=\"font-family:'Open Sans','Noto Sans CJK TC','Noto Sans CJK SC','Noto Sans CJK JP','Noto Sans CJK KR','Lucida Grande',Tahoma,arial,sans-serif;\">");
+        fontTag.setEndTemplate("</span>");
+        addTagToMap(tagMap, fontTag);
 
         BBCodeTag sizeTag = new BBCodeTag("size") {
             @Override
-            public String getOpenTag(String param, String content) {
-                Pattern numberPattern = Pattern.compile("-?\\d+");
-                Matcher matcher = numberPattern.matcher(param);
-                if (matcher.find()) {
-                    param = matcher.group();
-                }
-                if (param.isEmpty()) param = "14";
-                return "<span style=\"font-size:" + param + "px;\">";
-            }
-
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</span>";
+            protected String formatParam(String param) {
+                return BBCodeParamValidator.normalizeSize(param);
             }
         };
-        addTagToMap(sizeTag);
+        sizeTag.setOpenTemplate("<span style=\"font-size:{param}px;\">");
+        sizeTag.setEndTemplate("</span>");
+        addTagToMap(tagMap, sizeTag);
+
+        BBCodeTag centerTag = new BBCodeTag("center");
+        centerTag.setOpenTemplate("<div style=\"text-align:center;\">");
+        centerTag.setEndTemplate("</div>");
+        addTagToMap(tagMap, centerTag);
+
+        BBCodeTag leftTag = new BBCodeTag("left");
+        leftTag.setOpenTemplate("<div style=\"text-align:left;\">");
+        leftTag.setEndTemplate("</div>");
+        addTagToMap(tagMap, leftTag);
+
+        BBCodeTag rightTag = new BBCodeTag("right");
+        rightTag.setOpenTemplate("<div style=\"text-align:right;\">");
+        rightTag.setEndTemplate("</div>");
+        addTagToMap(tagMap, rightTag);
+
+        BBCodeTag justifyTag = new BBCodeTag("justify");
+        justifyTag.setOpenTemplate("<div style=\"text-align:justify;\">");
+        justifyTag.setEndTemplate("</div>");
+        addTagToMap(tagMap, justifyTag);
+
+        BBCodeTag startTag = new BBCodeTag("start");
+        startTag.setOpenTemplate("<div style=\"text-align:start;\">");
+        startTag.setEndTemplate("</div>");
+        addTagToMap(tagMap, startTag);
+
+        BBCodeTag endTag = new BBCodeTag("end");
+        endTag.setOpenTemplate("<div style=\"text-align:end;\">");
+        endTag.setEndTemplate("</div>");
+        addTagToMap(tagMap, endTag);
+
+        BBCodeTag imgTag = new BBCodeLinkTag("img", BBCodeLinkTag.Kind.IMAGE, "<img src=\"", "\" >", "<img alt='image'>");
+        imgTag.setEndTemplate("");
+        imgTag.setDisplayContent(false);
+        imgTag.setContentDependent(true);
+        addTagToMap(tagMap, imgTag);
+
+        BBCodeTag urlTag = new BBCodeLinkTag("url", BBCodeLinkTag.Kind.URL, "<a href=\"",
+                "\" target=\"_blank\" rel=\"noopener noreferrer nofollow\" onmousedown=\"event.preventDefault();event.stopPropagation();\">",
+                "<a>");
+        urlTag.setEndTemplate("</a>");
+        addTagToMap(tagMap, urlTag);
+
+        BBCodeTag emailTag = new BBCodeLinkTag("email", BBCodeLinkTag.Kind.EMAIL, "<a href='mailto:",
+                "' onmousedown='event.preventDefault();event.stopPropagation();'>", "<a>");
+        emailTag.setEndTemplate("</a>");
+        emailTag.setContentDependent(true);
+        addTagToMap(tagMap, emailTag);
+
+        BBCodeTag quoteTag = new BBCodeTag("quote");
+        quoteTag.setOpenTemplate("<blockquote>");
+        quoteTag.setEndTemplate("</blockquote>");
+        addTagToMap(tagMap, quoteTag);
+
+        BBCodeTag brTag = new BBCodeTag("br");
+        brTag.setOpenTemplate("");
+        brTag.setEndTemplate("<br>");
+        addTagToMap(tagMap, brTag);
 
-        BBCodeTag centerTag = new BBCodeTag("center") {
-            @Override
-            public String getOpenTag(String param, String content) {
-                return "<div style=\"text-align:center;\">";
-            }
+        /*
+         *  The [*] tag is special since the user does not define a closing [/*] tag when writing their bbcode.
+         *  Instead this module parses the code and adds the closing [/*] tag in for them. None of the tags you
+         *  add will act like this and this tag is an exception to the others.
+         */
+        BBCodeTag starTag = new BBCodeTag("*");
+        starTag.setOpenTemplate("<li>");
+        starTag.setEndTemplate("</li>");
+        addTagToMap(tagMap, starTag);
 
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</div>";
-            }
-        };
-        addTagToMap(centerTag);
+        return tagMap;
+    }
 
-        BBCodeTag leftTag = new BBCodeTag("left") {
-            @Override
-            public String getOpenTag(String param, String content) {
-                return "<div style=\"text-align:left;\">";
-            }
+    /*
+     *  Appends the HTML of a top-level node, or its source when its callbacks fail.
+     */
+    void renderTopLevel(BBCodeNode node, StringBuilder html, long maxLength) {
+        int start = html.length();
+        try {
+            BBCodeNode.walk(Collections.singletonList(node), new BBCodeHTMLRenderer(html, maxLength, escapeHTML));
+        } catch (BBCodeLimitExceededException e) {
+            throw e;
+        } catch (RuntimeException ignored) {
+            html.setLength(start);
+            appendSource(node.getSource(), node.getStart(), node.isText() ? node.getEnd() : node.getOuterEnd(), html);
+        }
+    }
 
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</div>";
-            }
-        };
-        addTagToMap(leftTag);
+    /*
+     *  Appends the source of a post shown as it is written instead of its HTML, escaped when the parser escapes HTML.
+     */
+    void appendSource(CharSequence source, int start, int end, StringBuilder html) {
+        if (escapeHTML) {
+            BBCodeHTMLEscaper.escape(source, start, end, BBCodeHTMLEscaper.HTML, html);
+        } else {
+            html.append(source, start, end);
+        }
+    }
 
-        BBCodeTag rightTag = new BBCodeTag("right") {
-            @Override
-            public String getOpenTag(String param, String content) {
-                return "<div style=\"text-align:right;\">";
-            }
+    private String source(String text) {
+        return escapeHTML ? BBCodeHTMLEscaper.escapeHTML(text) : text;
+    }
 
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</div>";
-            }
-        };
-        addTagToMap(rightTag);
+    BBCodeTreeBuilder newTreeBuilder(CharSequence text) {
+        BBCodeTreeBuilder builder = new BBCodeTreeBuilder(text, registry);
+        builder.setLimits(maxDepth, maxTags);
+        return builder;
+    }
 
-        BBCodeTag justifyTag = new BBCodeTag("justify") {
-            @Override
-            public String getOpenTag(String param, String content) {
-                return "<div style=\"text-align:justify;\">";
-            }
+    private BBCodeTreeBuilder newTreeBuilder(Reader reader) {
+        BBCodeTreeBuilder builder = new BBCodeTreeBuilder(reader, registry);
+        builder.setLimits(maxDepth, maxTags);
+        return builder;
+    }
 
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</div>";
-            }
-        };
-        addTagToMap(justifyTag);
+    private void checkOutputLength(long length) {
+        if (length > maxOutputLength) {
+            throw new BBCodeLimitExceededException("HTML longer than " + maxOutputLength + " chars");
+        }
+    }
 
-        BBCodeTag startTag = new BBCodeTag("start") {
-            @Override
-            public String getOpenTag(String param, String content) {
-                return "<div style=\"text-align:start;\">";
-            }
+    private static String escapeQuote(String htmlContent) {
+        return htmlContent.replace("\"", "&quot;");
+    }
 
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</div>";
-            }
-        };
-        addTagToMap(startTag);
+    /*
+     *  Renders through the cache once set, a null cache turns caching off again.
+     */
+    public void setRenderCache(BBCodeRenderCache renderCache) {
+        this.renderCache = renderCache;
+    }
 
-        BBCodeTag endTag = new BBCodeTag("end") {
-            @Override
-            public String getOpenTag(String param, String content) {
-                return "<div style=\"text-align:end;\">";
-            }
+    public BBCodeRenderCache getRenderCache() {
+        return renderCache;
+    }
 
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</div>";
-            }
-        };
-        addTagToMap(endTag);
+    /*
+     *  Renders through the persistent store once set, behind the render cache when both are set.
+     *  A null store turns it off again, closing the store is up to the caller.
+     */
+    public void setRenderStore(BBCodeRenderStore renderStore) {
+        this.renderStore = renderStore;
+    }
 
-        BBCodeTag imgTag = new BBCodeTag("img") {
-            @Override
-            public String getOpenTag(String param, String content) {
-				content = encodeUnicodeURL(content);
-				if (!content.startsWith("http://") && !content.startsWith("https://")) {
-                    content = "https://" + content;
-                }
-                if (!urlPattern.matcher(content).find()) return "<img alt='image'>";
+    public BBCodeRenderStore getRenderStore() {
+        return renderStore;
+    }
 
-                return "<img src=\"" + escapeQuote(content) + "\" >";
-            }
+    /*
+     *  Reports every post rendered by parseToHTML, parseUTF8ToHTML and removeBBCodeTag to the listener, e.g. a BBCodeParserMetrics.
+     *  Posts served from the render cache are not reported. A null listener turns the reporting off again,
+     *  the posts are then not even timed.
+     */
+    public void setListener(BBCodeParserListener listener) {
+        this.listener = listener;
+    }
 
-            @Override
-            public String getEndTag(String param, String content) {
-                return "";
-            }
-        };
-        imgTag.setDisplayContent(false);
-        addTagToMap(imgTag);
+    public BBCodeParserListener getListener() {
+        return listener;
+    }
 
-        BBCodeTag urlTag = new BBCodeTag("url") {
-            @Override
-            public String getOpenTag(String param, String content) {
-				param = encodeUnicodeURL(param);
-                if (!param.startsWith("http://") && !param.startsWith("https://")) {
-                    param = "https://" + param;
-                }
-                if (!urlPattern.matcher(param).find()) return "<a>";
-                return "<a href=\"" + escapeQuote(param) + "\" target=\"_blank\" rel=\"noopener noreferrer nofollow\" onmousedown=\"event.preventDefault();event.stopPropagation();\">";
-            }
+    public String parseToHTML(String text) {
+        BBCodeRenderCache cache = renderCache;
+        if (cache != null) {
+            return cache.get(text, this::renderThroughStore);
+        }
+        return renderThroughStore(text);
+    }
 
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</a>";
-            }
-        };
-        addTagToMap(urlTag);
+    /*
+     *  Renders the posts in parallel on the common ForkJoinPool, the results are in the order of the posts.
+     *  A post which fails to render is returned as it is, like parseToHTML does, without affecting the others.
+     */
+    public List<String> parseAllToHTML(List<String> texts) {
+        return parseAllToHTML(texts, ForkJoinPool.commonPool());
+    }
 
-        BBCodeTag emailTag = new BBCodeTag("email") {
-            @Override
-            public String getOpenTag(String param, String content) {
-                String email = param.isEmpty() ? content : param;
-                if (!emailPattern.matcher(email).find()) return "<a>";
+    /*
+     *  Renders the posts in parallel on the executor, split into a few batches per core.
+     */
+    public List<String> parseAllToHTML(List<String> texts, Executor executor) {
+        String[] sources = texts.toArray(new String[0]);
+        String[] results = new String[sources.length];
+        int batchCount = Math.min(sources.length, Runtime.getRuntime().availableProcessors() * 4);
+
+        CompletableFuture<?>[] batches = new CompletableFuture<?>[batchCount];
+        for (int batch = 0; batch < batchCount; batch++) {
+            int from = (int) ((long) sources.length * batch / batchCount);
+            int to = (int) ((long) sources.length * (batch + 1) / batchCount);
+            batches[batch] = CompletableFuture.runAsync(() -> {
+                for (int i = from; i < to; i++) {
+                    results[i] = parseToHTMLOrSource(sources[i]);
+                }
+            }, executor);
+        }
+        CompletableFuture.allOf(batches).join();
+        return Arrays.asList(results);
+    }
 
-                return "<a href='mailto:" + escapeQuote(email) + "' onmousedown='event.preventDefault();event.stopPropagation();'>";
-            }
+    /*
+     *  Renders a stream of posts in parallel, the returned stream keeps the encounter order of the posts.
+     */
+    public Stream<String> parseAllToHTML(Stream<String> texts) {
+        return texts.parallel().map(this::parseToHTMLOrSource);
+    }
 
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</a>";
-            }
-        };
-        addTagToMap(emailTag);
+    private String parseToHTMLOrSource(String text) {
+        if (text == null) return null;
+        try {
+            return parseToHTML(text);
+        } catch (RuntimeException ignored) {
+            return source(text);
+        }
+    }
 
-        BBCodeTag quoteTag = new BBCodeTag("quote") {
-            @Override
-            public String getOpenTag(String param, String content) {
-                return "<blockquote>";
-            }
+    /*
+     *  Appends the HTML of the post to html, which can be reused from post to post, without any intermediate copy of
+     *  the HTML. The post itself is appended when it cannot be rendered, as parseToHTML returns it.
+     */
+    public void parseToHTML(CharSequence text, StringBuilder html) {
+        BBCodeRenderCache cache = renderCache;
+        if (cache != null && text instanceof String) {
+            html.append(cache.get((String) text, this::renderThroughStore));
+        } else if (renderStore != null && text instanceof String) {
+            html.append(renderThroughStore((String) text));
+        } else if (!renderToHTML(text, html)) {
+            appendSource(text, 0, text.length(), html);
+        }
+    }
 
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</blockquote>";
-            }
-        };
-        addTagToMap(quoteTag);
+    /*
+     *  Puts the HTML of the post into html, staged in a buffer kept per thread.
+     *  Throws a BufferOverflowException, leaving html unchanged, when the HTML does not fit into it.
+     */
+    public void parseToHTML(CharSequence text, CharBuffer html) {
+        StringBuilder scratch = scratchBuffers.get();
+        scratch.setLength(0);
+        try {
+            parseToHTML(text, scratch);
+            if (scratch.length() > html.remaining()) throw new BufferOverflowException();
 
-        BBCodeTag brTag = new BBCodeTag("br") {
-            @Override
-            public String getOpenTag(String param, String content) {
-                return "";
+            if (html.hasArray()) {
+                scratch.getChars(0, scratch.length(), html.array(), html.arrayOffset() + html.position());
+                html.position(html.position() + scratch.length());
+            } else {
+                for (int i = 0; i < scratch.length(); i++) {
+                    html.put(scratch.charAt(i));
+                }
             }
-
-            @Override
-            public String getEndTag(String param, String content) {
-                return "<br>";
+        } finally {
+            if (scratch.capacity() > MAX_SCRATCH_CAPACITY) {
+                scratchBuffers.remove();
             }
-        };
-        addTagToMap(brTag);
+        }
+    }
 
-        /*
-         *  The [*] tag is special since the user does not define a closing [/*] tag when writing their bbcode.
-         *  Instead this module parses the code and adds the closing [/*] tag in for them. None of the tags you
-         *  add will act like this and this tag is an exception to the others.
-         */
-        BBCodeTag starTag = new BBCodeTag("*") {
-            @Override
-            public String getOpenTag(String param, String content) {
-                return "<li>";
-            }
+    /*
+     *  Renders a post stored as UTF-8 to UTF-8 HTML without decoding the post, the text between the tags is copied
+     *  byte for byte and only the tag params are decoded. The post is returned as it is when it cannot be rendered.
+     */
+    public byte[] parseUTF8ToHTML(byte[] utf8) {
+        BBCodeUTF8Buffer html = new BBCodeUTF8Buffer(utf8.length + 16);
+        if (!renderUTF8ToHTML(ByteBuffer.wrap(utf8), html)) {
+            if (!escapeHTML) return utf8;
+            appendSource(ByteBuffer.wrap(utf8), html);
+        }
+        return html.toByteArray();
+    }
 
-            @Override
-            public String getEndTag(String param, String content) {
-                return "</li>";
+    /*
+     *  Puts the UTF-8 HTML of the remaining bytes of utf8, a heap or direct buffer whose position is left as it is,
+     *  into html, staged in a buffer kept per thread. Throws a BufferOverflowException, leaving html unchanged,
+     *  when the HTML does not fit into it.
+     */
+    public void parseUTF8ToHTML(ByteBuffer utf8, ByteBuffer html) {
+        BBCodeUTF8Buffer scratch = utf8ScratchBuffers.get();
+        scratch.setLength(0);
+        try {
+            if (!renderUTF8ToHTML(utf8, scratch)) {
+                if (!escapeHTML) {
+                    if (utf8.remaining() > html.remaining()) throw new BufferOverflowException();
+                    html.put(utf8.duplicate());
+                    return;
+                }
+                appendSource(utf8, scratch);
             }
-        };
-        addTagToMap(starTag);
+            if (scratch.length() > html.remaining()) throw new BufferOverflowException();
+            scratch.copyTo(html);
+        } finally {
+            if (scratch.capacity() > MAX_SCRATCH_CAPACITY) {
+                utf8ScratchBuffers.remove();
+            }
+        }
     }
 
-    private String escapeQuote(String htmlContent) {
-        return htmlContent.replace("\"", "&quot;");
+    // appends the HTML, or the post itself when it cannot be rendered
+    void parseUTF8ToHTML(ByteBuffer utf8, BBCodeUTF8Buffer html) {
+        if (!renderUTF8ToHTML(utf8, html)) {
+            appendSource(utf8, html);
+        }
     }
 
-    private String encodeUnicodeURL(String url) {
-        Matcher matcher = unicodePattern.matcher(url);
-        StringBuffer buffer = new StringBuffer();
-        while (matcher.find()) {
-            String group = matcher.group();
-            matcher.appendReplacement(buffer, Encoder.encodeURIComponent(group));
+    private void appendSource(ByteBuffer utf8, BBCodeUTF8Buffer html) {
+        if (escapeHTML) {
+            BBCodeUTF8Source source = new BBCodeUTF8Source(utf8);
+            BBCodeHTMLEscaper.escape(source, 0, source.length(), BBCodeHTMLEscaper.HTML, html);
+        } else {
+            html.write(utf8, utf8.position(), utf8.remaining());
         }
-        matcher.appendTail(buffer);
-        return buffer.toString();
     }
 
-    private String getCorrectColorCode(String colorCode) {
-        if (!colorNamePattern.matcher(colorCode).find() && !colorRGBPattern.matcher(colorCode).find()) {
-            if (!colorCodePattern.matcher(colorCode).find()) {
-                colorCode = "black";
-            } else {
-                if (colorCode.charAt(0) != '#') {
-                    colorCode = "#" + colorCode;
-                }
-            }
+    // returns false, leaving html as it was, when the post cannot be rendered
+    private boolean renderUTF8ToHTML(ByteBuffer utf8, BBCodeUTF8Buffer html) {
+        BBCodeParserListener listener = this.listener;
+        long startTime = listener != null ? System.nanoTime() : 0;
+        long parsedTime = 0;
+        int start = html.length();
+        BBCodeTreeBuilder builder = newTreeBuilder(new BBCodeUTF8Source(utf8));
+        BBCodeParseEvent.Outcome outcome = BBCodeParseEvent.Outcome.RENDERED;
+        try {
+            List<BBCodeNode> nodes = builder.build();
+            if (listener != null) parsedTime = System.nanoTime();
+            BBCodeNode.walk(nodes, new BBCodeUTF8Renderer(html, maxOutputLength, escapeHTML));
+        } catch (Exception e) {
+            html.setLength(start);
+            outcome = outcomeOf(e);
         }
-        return colorCode;
+
+        if (listener != null) {
+            int outputLength = outcome == BBCodeParseEvent.Outcome.RENDERED ? html.length() - start : utf8.remaining();
+            report(listener, BBCodeParseEvent.Operation.UTF8_HTML, outcome, utf8.remaining(), outputLength,
+                    builder.getElementCount(), startTime, parsedTime);
+        }
+        return outcome == BBCodeParseEvent.Outcome.RENDERED;
     }
 
-    public String parseToHTML(String text) {
-        text = text.replace("$", "&#36;").replace("\\", "&#92;");
+    private String renderThroughStore(String text) {
+        BBCodeRenderStore store = renderStore;
+        if (store != null) {
+            return store.get(text, fingerprint, this::renderToHTML);
+        }
+        return renderToHTML(text);
+    }
 
-        StringBuilder source = new StringBuilder();
-        source.append(text);
+    private String renderToHTML(String text) {
+        StringBuilder html = new StringBuilder(text.length() + 16);
+        // return original content if the tag callbacks failed.
+        return renderToHTML(text, html) ? html.toString() : source(text);
+    }
 
+    // returns false, leaving html as it was, when the post cannot be rendered
+    private boolean renderToHTML(CharSequence text, StringBuilder html) {
+        BBCodeParserListener listener = this.listener;
+        long startTime = listener != null ? System.nanoTime() : 0;
+        long parsedTime = 0;
+        int start = html.length();
+        BBCodeTreeBuilder builder = newTreeBuilder(text);
+        // a large post is rendered in chunks on the fork-join pool while it is parsed
+        BBCodeParallelRenderer parallelRenderer = BBCodeParallelRenderer.isWorthwhile(text.length())
+                ? new BBCodeParallelRenderer(maxOutputLength, escapeHTML) : null;
+        BBCodeParseEvent.Outcome outcome = BBCodeParseEvent.Outcome.RENDERED;
         try {
-            int maxCount = 5000, count = 0;
-            while (!text.equals((text = processEmptyTag(text))) && count++ < maxCount) { }  // process tags that don't have their content parsed
-            while (!text.equals((text = fixStarTag(text))) && count++ < maxCount) { }       // add in closing tags for the [*] tag
-            while (!text.equals((text = addBbcodeLevels(text))) && count++ < maxCount) { }  // add in level metadata
-            while (!text.equals((text = processContent(text))) && count++ < maxCount) { }
-
-            if (count > maxCount) {
-                // return original content if there are some tag missed.
-                return source.toString();
-            }
-        } catch (Exception ignored) {
-            return source.toString();
+            if (parallelRenderer != null) {
+                builder.build(parallelRenderer);
+                if (listener != null) parsedTime = System.nanoTime();
+                parallelRenderer.finish(html);
+            } else {
+                List<BBCodeNode> nodes = builder.build();
+                if (listener != null) parsedTime = System.nanoTime();
+                BBCodeNode.walk(nodes, new BBCodeHTMLRenderer(html, maxOutputLength, escapeHTML));
+            }
+        } catch (Exception e) {
+            if (parallelRenderer != null) parallelRenderer.cancel();
+            html.setLength(start);
+            outcome = outcomeOf(e);
         }
 
-        return text.replace("&#36;", "$").replace("&#92;", "\\");
+        if (listener != null) {
+            int outputLength = outcome == BBCodeParseEvent.Outcome.RENDERED ? html.length() - start : text.length();
+            report(listener, BBCodeParseEvent.Operation.HTML, outcome, text.length(), outputLength,
+                    builder.getElementCount(), startTime, parsedTime);
+        }
+        return outcome == BBCodeParseEvent.Outcome.RENDERED;
     }
 
-    public String removeBBCodeTag(String text) {
-        text = text.replace("$", "&#36;").replace("\\", "&#92;");
+    private static BBCodeParseEvent.Outcome outcomeOf(Exception e) {
+        return e instanceof BBCodeLimitExceededException
+                ? BBCodeParseEvent.Outcome.LIMIT_EXCEEDED : BBCodeParseEvent.Outcome.FAILED;
+    }
 
-        StringBuilder source = new StringBuilder();
-        source.append(text);
+    // parsedTime is 0 when the post failed before it was parsed
+    private static void report(BBCodeParserListener listener, BBCodeParseEvent.Operation operation,
+                               BBCodeParseEvent.Outcome outcome, int inputLength, int outputLength, int elementCount,
+                               long startTime, long parsedTime) {
+        long endTime = System.nanoTime();
+        if (parsedTime == 0) parsedTime = endTime;
+        listener.postRendered(new BBCodeParseEvent(operation, outcome, inputLength, outputLength, elementCount,
+                parsedTime - startTime, endTime - parsedTime));
+    }
 
+    /*
+     *  Streaming variant of parseToHTML, the HTML of each top-level tag is written as soon as the tag is closed,
+     *  so only the top-level tag being parsed is held in memory instead of the whole post.
+     *  Since the output written so far cannot be taken back, a top-level tag whose callbacks fail is written as it is,
+     *  and once a limit of the parser is hit the rest of the post is written as it is, starting with the top-level tag
+     *  it was hit in.
+     */
+    public void render(Reader in, Appendable out) throws IOException {
+        StringBuilder html = new StringBuilder();
+        long[] written = new long[1];
+        BBCodeTreeBuilder builder = newTreeBuilder(in);
         try {
-            int maxCount = 5000, count = 0;
-            String prevText;
-            do {
-                prevText = text;
-                Matcher matcher = parsedTagPattern.matcher(text);
-                StringBuffer tempFiller = new StringBuffer();
-                while (matcher.find()) {
-                    if ("br".equalsIgnoreCase(matcher.group(1))) {
-                        matcher.appendReplacement(tempFiller, "\r\n");
-                    } else {
-                        String content = matcher.group(3).replaceAll("\\[", "&#91;").replaceAll("\\]", "&#93;");
-                        matcher.appendReplacement(tempFiller, content);
+            builder.build(node -> {
+                try {
+                    if (node.isText() && !escapeHTML) {
+                        checkOutputLength(written[0] += node.getEnd() - node.getStart());
+                        out.append(node.getSource(), node.getStart(), node.getEnd());
+                        return;
                     }
+                    renderTopLevel(node, html, maxOutputLength - written[0]);
+                    written[0] += html.length();
+                    out.append(html);
+                    html.setLength(0);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
                 }
-                matcher.appendTail(tempFiller);
-                text = tempFiller.toString();
-            } while (!prevText.equals(text) && count++ < maxCount);
-
-            if (count > maxCount) {
-                // return original content if there are some tag missed.
-                return source.toString();
-            }
-        } catch (Exception ignored) {
-            return source.toString();
+            });
+        } catch (BBCodeLimitExceededException e) {
+            builder.transferRest(escapeHTML ? BBCodeHTMLEscaper.escapingHTML(out) : out);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
+    }
 
-        return text.replace("&#36;", "$").replace("&#92;", "\\");
+    /*
+     *  Starts a live preview of a draft that renders each edit again only where it changes the draft.
+     */
+    public BBCodePreview preview(String text) {
+        return new BBCodePreview(this, text);
     }
 
-    private String processEmptyTag(String text) {
-        Matcher matcher = noParsedTagPattern.matcher(text);
-        StringBuffer tempFiller = new StringBuffer();
-        while (matcher.find()) {
-            String content = matcher.group(3).replaceAll("\\[", "&#91;").replaceAll("\\]", "&#93;");
-            String param = matcher.group(2) == null ? "" : matcher.group(2);
-            matcher.appendReplacement(tempFiller,
-                    "[" + matcher.group(1) + param + "]" + content + "[/" + matcher.group(1) + "]");
-        }
-        matcher.appendTail(tempFiller);
-        return tempFiller.toString();
+    long getMaxOutputLength() {
+        return maxOutputLength;
     }
 
     /*
-     * The star tag [*] is special in that it does not use a closing tag. Since this parser requires that tags to have a closing
-     * tag, we must pre-process the input and add in closing tags [/*] for the star tag.
-     * We have a little levaridge in that we know the text we're processing wont contain the <> characters (they have been
-     * changed into their HTML entity form to prevent XSS and code injection), so we can use those characters as markers to
-     * help us define boundaries and figure out where to place the [/*] tags.
+     *  Parses the post once, e.g. when it is saved, into a compact binary form which is rendered by
+     *  parseToHTML(byte[]) and removeBBCodeTag(byte[]) without parsing it again.
+     *  The binary form is bound to the tag set, see isCompatible. A post over the depth or tag limit of the parser
+     *  is not compiled, a BBCodeLimitExceededException is thrown instead.
      */
-    private String fixStarTag(String text) {
-        StringBuffer tempFiller = new StringBuffer();
-        Matcher matcher = Pattern.compile("\\[list([ =][^\\]]*)?\\]([^>]*?)(\\[\\/list])").matcher(text);
-        while (matcher.find()) {
-            String innerListTxt = matcher.group();
-            while (!innerListTxt.equals((innerListTxt = fixInnerStarTag(innerListTxt)))) {
-            }
-            matcher.appendReplacement(tempFiller, innerListTxt);
-        }
-        matcher.appendTail(tempFiller);
-
-        return tempFiller.toString();
+    public byte[] compile(String text) {
+        return binaryFormat.encode(newTreeBuilder(text).build());
     }
 
-    private String fixInnerStarTag(String innerListTxt) {
-        Matcher innerMatcher = Pattern.compile("\\[\\*\\]([^\\[]*?)(\\[\\*\\]|\\[\\/list])").matcher(innerListTxt);
-        StringBuffer innerTempFiller = new StringBuffer();
-        while (innerMatcher.find()) {
-            String endTag = innerMatcher.group(2);
-            if (endTag.equalsIgnoreCase("[/list]")) {
-                endTag = "[/*][/list]";
-            } else {
-                endTag = "[/*][*]";
-            }
-            innerMatcher.appendReplacement(innerTempFiller, "[*]" + innerMatcher.group(1) + endTag);
-        }
-        innerMatcher.appendTail(innerTempFiller);
+    /*
+     *  Returns false when the compiled post was written for another format version or tag set,
+     *  it then has to be compiled again from its source.
+     */
+    public boolean isCompatible(byte[] compiled) {
+        return binaryFormat.isCompatible(compiled);
+    }
 
-        return innerTempFiller.toString();
+    /*
+     *  Throws a BBCodeLimitExceededException when the HTML gets longer than the output limit of the parser.
+     */
+    public String parseToHTML(byte[] compiled) {
+        StringBuilder html = new StringBuilder(compiled.length + 16);
+        binaryFormat.decode(compiled, new BBCodeHTMLRenderer(html, maxOutputLength, escapeHTML));
+        return html.toString();
     }
 
-    private String addBbcodeLevels(String text) {
-        Matcher matcher = parsedTagPattern.matcher(text);
-        StringBuffer tempFiller = new StringBuffer();
-        while (matcher.find()) {
-            String matchStr = matcher.group().replaceAll("\\[", "<").replaceAll("\\]", ">");
-            matcher.appendReplacement(tempFiller, updateTagDepths(matchStr));
-        }
-        matcher.appendTail(tempFiller);
+    public String removeBBCodeTag(byte[] compiled) {
+        StringBuilder text = new StringBuilder(compiled.length);
+        binaryFormat.decode(compiled, new BBCodePlainTextRenderer(text));
+        return text.toString();
+    }
 
-        return tempFiller.toString();
+    public String parseToHTMLPreview(String text, int visibleLength) {
+        return parseToHTMLPreview(text, visibleLength, "");
     }
 
     /*
-     *  This function updates or adds a piece of metadata to each tag called "bbcl" which
-     *  indicates how deeply nested a particular tag was in the bbcode. This property is removed
-     *  from the HTML code tags at the end of the processing.
+     *  Renders the beginning of a post with at most visibleLength chars of displayed text, e.g. for a feed card, and
+     *  appends the ellipsis HTML when displayed text was cut off, not when only tags or empty elements follow the cut.
+     *  Building stops at the cut and the elements still open there are closed, so the cost depends on the length of the
+     *  preview rather than of the post, and the HTML is well-formed. Only the tags up to the next displayed text are
+     *  read after the cut, to tell whether there is any.
+     *  Text that is not displayed, e.g. the URL of an image, is neither counted nor cut. A post the parser cannot
+     *  render falls back to its first visibleLength chars as they are written.
      */
-    private String updateTagDepths(String tagContents) {
-        Matcher matcher = checkDepthsPattern.matcher(tagContents);
-        Matcher subMatcher;
-        StringBuffer tempFiller = new StringBuffer();
-        while (matcher.find()) {
-            String subMatchStr = matcher.group(1);
-            subMatcher = subDepthsComparePattern.matcher(subMatchStr);
-
-            if (!subMatcher.find()) {
-                matcher.appendReplacement(tempFiller, "<bbcl=0 " + subMatchStr + ">");
-            } else {
-                StringBuffer subTempFiller = new StringBuffer();
-                subMatcher = subDepthsPattern.matcher(subMatchStr);
-                while (subMatcher.find()) {
-                    subMatcher.appendReplacement(subTempFiller, subMatcher.group(1) + (Integer.parseInt(subMatcher.group(2)) + 1));
-                }
-                subMatcher.appendTail(subTempFiller);
-
-                matcher.appendReplacement(tempFiller, "<" + subTempFiller.toString() + ">");
-            }
+    public String parseToHTMLPreview(String text, int visibleLength, String ellipsis) {
+        if (visibleLength < 0) throw new IllegalArgumentException("visibleLength must not be negative");
+        BBCodeParserListener listener = this.listener;
+        long startTime = listener != null ? System.nanoTime() : 0;
+        long parsedTime = 0;
+        BBCodeTreeBuilder builder = newTreeBuilder(text);
+        builder.setVisibleTextLimit(visibleLength);
+        BBCodeParseEvent.Outcome outcome = BBCodeParseEvent.Outcome.RENDERED;
+        StringBuilder html = new StringBuilder(Math.min(text.length(), visibleLength) + 64);
+        boolean truncated;
+        try {
+            List<BBCodeNode> nodes = builder.build();
+            if (listener != null) parsedTime = System.nanoTime();
+            BBCodeTruncatingVisitor visitor = new BBCodeTruncatingVisitor(
+                    new BBCodeHTMLRenderer(html, maxOutputLength, escapeHTML), visibleLength, !escapeHTML);
+            BBCodeNode.walk(nodes, visitor);
+            truncated = builder.isTruncated() || visitor.isTruncated();
+        } catch (Exception e) {
+            outcome = outcomeOf(e);
+            html.setLength(0);
+            int end = Math.min(visibleLength, text.length());
+            if (end > 0 && end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) end--;
+            appendSource(text, 0, end, html);
+            truncated = end < text.length();
+        }
+        if (truncated) {
+            html.append(ellipsis);
         }
-        matcher.appendTail(tempFiller);
 
-        return tempFiller.toString();
+        if (listener != null) {
+            report(listener, BBCodeParseEvent.Operation.HTML, outcome, text.length(), html.length(),
+                    builder.getElementCount(), startTime, parsedTime);
+        }
+        return html.toString();
     }
 
-    private String processContent(String text) {
-        Matcher bbMatcher = bbclPattern.matcher(text);
-        StringBuffer tempFiller = new StringBuffer();
+    /*
+     *  Renders the post as parseToHTML does and collects its links, images, email addresses and tag counts in the
+     *  same walk, see BBCodeRenderReport. The render cache is not used, and the listener gets a single HTML event.
+     */
+    public BBCodeRenderReport parseToHTMLWithReport(String text) {
+        BBCodeParserListener listener = this.listener;
+        long startTime = listener != null ? System.nanoTime() : 0;
+        long parsedTime = 0;
+        BBCodeTreeBuilder builder = newTreeBuilder(text);
+        BBCodeParseEvent.Outcome outcome = BBCodeParseEvent.Outcome.RENDERED;
+        BBCodeRenderReport renderReport = new BBCodeRenderReport();
+        StringBuilder html = new StringBuilder(text.length() + 16);
         try {
-            while (bbMatcher.find()) {
-                String tagName = bbMatcher.group(2).toLowerCase(), tagParam = bbMatcher.group(3), tagContents = bbMatcher.group(4);
-                if (tagParam == null) tagParam = "";
-                else {
-                    tagParam = tagParam.trim().substring(1);
-                } // remove "="
-
-                BBCodeTag tag = tagMap.get(tagName);
+            List<BBCodeNode> nodes = builder.build();
+            if (listener != null) parsedTime = System.nanoTime();
+            BBCodeHTMLRenderer renderer = new BBCodeHTMLRenderer(html, maxOutputLength, escapeHTML);
+            renderer.setReport(renderReport);
+            BBCodeNode.walk(nodes, renderer);
+        } catch (Exception e) {
+            outcome = outcomeOf(e);
+            html.setLength(0);
+            appendSource(text, 0, text.length(), html);
+            renderReport.clear();
+        }
 
-                String processedContent = tag.isNoParse() ? unprocess(tagContents) : processContent(tagContents),
-                        openTag = tag.getOpenTag(tagParam, processedContent),
-                        closeTag = tag.getEndTag(tagParam, processedContent);
+        if (listener != null) {
+            report(listener, BBCodeParseEvent.Operation.HTML, outcome, text.length(), html.length(),
+                    builder.getElementCount(), startTime, parsedTime);
+        }
+        renderReport.setHTML(html.toString());
+        return renderReport;
+    }
 
-                if (!tag.isDisplayContent()) {
-                    processedContent = "";
-                }
+    public BBCodeRenderResult parseToHTMLAndText(String text) {
+        return parseToHTMLAndText(text, -1);
+    }
 
-                bbMatcher.appendReplacement(tempFiller, openTag + processedContent + closeTag);
+    /*
+     *  Renders the HTML and the plain text of a post from a single parse and walk, as parseToHTML and removeBBCodeTag
+     *  return them, and a preview of the first previewLength chars of the plain text unless previewLength is negative.
+     *  The render cache is not used, and the listener gets a single HTML event for the post.
+     */
+    public BBCodeRenderResult parseToHTMLAndText(String text, int previewLength) {
+        BBCodeParserListener listener = this.listener;
+        long startTime = listener != null ? System.nanoTime() : 0;
+        long parsedTime = 0;
+        BBCodeTreeBuilder builder = newTreeBuilder(text);
+        BBCodeParseEvent.Outcome outcome = BBCodeParseEvent.Outcome.RENDERED;
+        StringBuilder html = new StringBuilder(text.length() + 16);
+        StringBuilder plainText = new StringBuilder(text.length());
+        List<BBCodeNode> nodes = null;
+        try {
+            nodes = builder.build();
+            if (listener != null) parsedTime = System.nanoTime();
+            BBCodeNode.walk(nodes, new BBCodeTeeVisitor(new BBCodePlainTextRenderer(plainText),
+                    new BBCodeHTMLRenderer(html, maxOutputLength, escapeHTML)));
+        } catch (Exception e) {
+            outcome = outcomeOf(e);
+            html.setLength(0);
+            appendSource(text, 0, text.length(), html);
+            // the plain text does not depend on the tag callbacks or the output limit, only on the parse
+            plainText.setLength(0);
+            if (nodes != null) {
+                BBCodeNode.walk(nodes, new BBCodePlainTextRenderer(plainText));
+            } else {
+                plainText.append(text);
             }
-        } catch (StackOverflowError e) { // avoid exception generated from regex pattern
-            System.out.println("StackOverflowError");
         }
-        bbMatcher.appendTail(tempFiller);
 
-        return tempFiller.toString();
+        if (listener != null) {
+            report(listener, BBCodeParseEvent.Operation.HTML, outcome, text.length(), html.length(),
+                    builder.getElementCount(), startTime, parsedTime);
+        }
+        String preview = null;
+        if (previewLength >= 0) {
+            int end = Math.min(previewLength, plainText.length());
+            if (end > 0 && end < plainText.length() && Character.isHighSurrogate(plainText.charAt(end - 1))) end--;
+            preview = plainText.substring(0, end);
+        }
+        return new BBCodeRenderResult(html.toString(), plainText.toString(), preview);
+    }
+
+    public String removeBBCodeTag(String text) {
+        return removeBBCodeTag(text, Integer.MAX_VALUE);
     }
 
     /*
-     *  This function removes the metadata added by the updateTagDepths function
+     *  Returns the plain text of the post cut after maxLength chars of text, e.g. for a snippet. Tokenizing stops as
+     *  soon as enough text is found, so the cost depends on the length of the snippet rather than of the post.
+     *  The tags still open at the cut are taken as closed there, so the result is not always a prefix of the plain
+     *  text of the whole post: "[b]abcdef" gives "abcd" for a maxLength of 4, while the whole post gives "[b]abcdef"
+     *  since its [b] is never closed.
      */
-    private String unprocess(String tagContent) {
-        return tagContent.replaceAll("<bbcl=[0-9]+ \\/\\*>", "").replaceAll("<bbcl=[0-9]+ ", "&#91;").replace(">", "&#93;");
+    public String removeBBCodeTag(String text, int maxLength) {
+        if (maxLength < 0) throw new IllegalArgumentException("maxLength must not be negative");
+        BBCodeParserListener listener = this.listener;
+        long startTime = listener != null ? System.nanoTime() : 0;
+        long parsedTime = 0;
+        BBCodeTreeBuilder builder = newTreeBuilder(text);
+        builder.setTextLimit(maxLength);
+        BBCodeParseEvent.Outcome outcome = BBCodeParseEvent.Outcome.RENDERED;
+        String plainText;
+        try {
+            List<BBCodeNode> nodes = builder.build();
+            if (listener != null) parsedTime = System.nanoTime();
+            StringBuilder sb = new StringBuilder(Math.min(text.length(), maxLength));
+            BBCodeNode.walk(nodes, new BBCodePlainTextRenderer(sb, maxLength));
+            plainText = sb.toString();
+        } catch (Exception e) {
+            plainText = text.length() > maxLength ? text.substring(0, maxLength) : text;
+            outcome = outcomeOf(e);
+        }
+
+        if (listener != null) {
+            report(listener, BBCodeParseEvent.Operation.PLAIN_TEXT, outcome, text.length(), plainText.length(),
+                    builder.getElementCount(), startTime, parsedTime);
+        }
+        return plainText;
     }
 
-    private void addTagToMap(String tagName) {
+    private static void addTagToMap(Map<String, BBCodeTag> tagMap, String tagName) {
         if (!tagName.isEmpty()) {
-            addTagToMap(new BBCodeTag(tagName));
+            addTagToMap(tagMap, new BBCodeTag(tagName));
         }
     }
 
-    private void addTagToMap(BBCodeTag tag) {
+    private static void addTagToMap(Map<String, BBCodeTag> tagMap, BBCodeTag tag) {
         tagMap.put(tag.getTagName(), tag);
     }
-}
 
-class BBCodeTag {
-    private String tagName;
-    private boolean noParse = false;
-    private boolean displayContent = true;
+    /*
+     *  Builds immutable parsers which can be used next to each other, tag names are given in any case.
+     */
+    public static class Builder {
+        private final LinkedHashMap<String, BBCodeTag> tags = new LinkedHashMap<>();
+        private int maxDepth;
+        private int maxTags;
+        private long maxOutputLength;
+        private boolean escapeHTML;
+
+        private Builder(BBCodeParser base) {
+            for (BBCodeTag tag : base.registry.getTags()) {
+                tags.put(tag.getTagName(), tag);
+            }
+            maxDepth = base.maxDepth;
+            maxTags = base.maxTags;
+            maxOutputLength = base.maxOutputLength;
+            escapeHTML = base.escapeHTML;
+        }
 
-    BBCodeTag(String tagName) {
-        this.tagName = tagName;
-    }
+        /*
+         *  Keeps only the given tags, e.g. withTags("b", "i", "u", "url") for signatures.
+         */
+        public Builder withTags(String... tagNames) {
+            List<String> keptNames = new ArrayList<>();
+            for (String tagName : tagNames) {
+                keptNames.add(tagName.toLowerCase(Locale.ROOT));
+            }
+            tags.keySet().retainAll(keptNames);
+            return this;
+        }
 
-    public String getOpenTag(String param, String content) {
-        return "<" + tagName + ">";
-    }
+        public Builder withoutTags(String... tagNames) {
+            for (String tagName : tagNames) {
+                tags.remove(tagName.toLowerCase(Locale.ROOT));
+            }
+            return this;
+        }
 
-    public String getEndTag(String param, String content) {
-        return "</" + tagName + ">";
-    }
+        /*
+         *  Adds a tag, or replaces the tag of the same name.
+         */
+        public Builder addTag(BBCodeTag tag) {
+            tags.put(tag.getTagName(), tag);
+            return this;
+        }
 
-    public String getTagName() {
-        return tagName;
-    }
+        /*
+         *  The limits bound the work done for a single post, whatever it holds. A post over any of them is not
+         *  rendered, the render methods fall back to the post as it is written, see parseToHTML and render.
+         */
+        public Builder withMaxDepth(int maxDepth) {
+            if (maxDepth <= 0) throw new IllegalArgumentException("maxDepth must be positive");
+            this.maxDepth = maxDepth;
+            return this;
+        }
 
-    public boolean isNoParse() {
-        return noParse;
-    }
+        public Builder withMaxTags(int maxTags) {
+            if (maxTags < 0) throw new IllegalArgumentException("maxTags must not be negative");
+            this.maxTags = maxTags;
+            return this;
+        }
 
-    public void setNoParse(boolean noParse) {
-        this.noParse = noParse;
-    }
+        public Builder withMaxOutputLength(long maxOutputLength) {
+            if (maxOutputLength < 0) throw new IllegalArgumentException("maxOutputLength must not be negative");
+            this.maxOutputLength = maxOutputLength;
+            return this;
+        }
 
-    public boolean isDisplayContent() {
-        return displayContent;
-    }
+        /*
+         *  Makes the parser take raw text rather than text with its HTML already escaped: the text and params are
+         *  escaped while they are rendered, and so is a post shown as it is written. The tag callbacks get the params
+         *  and the content escaped. removeBBCodeTag still returns plain text.
+         */
+        public Builder withHTMLEscaping() {
+            this.escapeHTML = true;
+            return this;
+        }
 
-    public void setDisplayContent(boolean displayContent) {
-        this.displayContent = displayContent;
+        public BBCodeParser build() {
+            return new BBCodeParser(this);
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,200 @@
+package demo.vencs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ *  Measures how the batch rendering of BBCodeParser scales with the number of threads, and how the time for posts
+ *  crafted against the parser grows with their length, which has to be linear. Fails when the time for a 400k post
+ *  grows more than linearly over the time for a 50k one, beyond MAX_GROWTH for noise, or when the time for a post
+ *  nesting content dependent tags grows so with the output limit.
+ *  Usage: java demo.vencs.BBCodeParserBenchmark [post count] [seconds per thread count]
+ */
+public class BBCodeParserBenchmark {
+    private static final String[] fragments = {
+            "Some plain text of a reply, ",
+            "[b]bold[/b] and [i]italic[/i] ",
+            "[color=red]red[/color] [color=#00ff00]green[/color] ",
+            "[url=https://example.com/page?id=1]a link[/url] ",
+            "[img]https://example.com/image.png[/img]\n",
+            "[quote][b]someone[/b] wrote:\n[quote]an older reply[/quote]the reply[/quote]\n",
+            "[list][*]first item[*]second item[*][u]third[/u] item[/list]\n",
+            "[code]for (int i = 0; i < n; i++) { a[i] = b[i]; }[/code]\n",
+            "[size=18]large[/size] [center]centered[/center]\n",
+    };
+
+    // patterns that are repeated to build posts aimed at backtracking, deep nesting, lookahead and output growth
+    private static final String[] adversarialPatterns = {
+            "[quote]",
+            "[b][i]",
+            "[",
+            "[color=",
+            "[code]",
+            "[url=",
+            "[/b]",
+            "[list][*]",
+            "[quote][/quote]",
+            "[b]x[/i]",
+    };
+
+    // tags whose HTML repeats their content, e.g. an email in both the mailto link and the text, so that nesting them
+    // doubles the HTML with every level: the 22 emails around an address render to about 444M chars without limits
+    private static final String[][] nestedTags = {
+            {"email", "a@b.cc", "22"},
+            {"img", "https://example.com/image.png", "22"},
+    };
+
+    private static final double MAX_GROWTH = 4;
+
+    public static void main(String[] args) throws Exception {
+        int postCount = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        List<String> posts = createPosts(postCount, new Random(42));
+        BBCodeParser parser = BBCodeParser.getInstance();
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        double singleThreadRate = 0;
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                parser.parseAllToHTML(posts, executor); // warm up
+
+                long posted = 0;
+                long start = System.nanoTime();
+                long deadline = start + seconds * 1_000_000_000L;
+                while (System.nanoTime() < deadline) {
+                    parser.parseAllToHTML(posts, executor);
+                    posted += posts.size();
+                }
+                double rate = posted / ((System.nanoTime() - start) / 1e9);
+                if (threads == 1) singleThreadRate = rate;
+                System.out.printf("%3d threads: %,12.0f posts/s  speedup %.2f%n", threads, rate, rate / singleThreadRate);
+            } finally {
+                executor.shutdown();
+            }
+            if (threads < cores && threads * 2 > cores) threads = cores / 2;
+        }
+
+        BBCodeParser limitedParser = BBCodeParser.builder()
+                .withMaxDepth(64).withMaxTags(10_000).withMaxOutputLength(1 << 20).build();
+        List<String> failures = new ArrayList<>();
+        for (String pattern : adversarialPatterns) {
+            // the long post first so that the short one is not timed while the parser is still being compiled
+            double longRate = nanosPerChar(parser, createAdversarialPost(pattern, 400_000));
+            double shortRate = nanosPerChar(parser, createAdversarialPost(pattern, 50_000));
+            double limitedRate = nanosPerChar(limitedParser, createAdversarialPost(pattern, 400_000));
+            System.out.printf("%-16s %8.1f ns/char at 50k, %8.1f at 400k, %8.1f with limits%n",
+                    pattern, shortRate, longRate, limitedRate);
+            if (growsTooFast(shortRate * 50_000, longRate * 400_000)) {
+                failures.add(String.format("%s: %.1fx the time for 8x the length", pattern, longRate / shortRate * 8));
+            }
+        }
+
+        // closing tags without an open element inside hidden content, which the preview follows past its cut
+        double longPreviewRate = previewNanosPerChar(parser, createHiddenClosingPost(400_000));
+        double shortPreviewRate = previewNanosPerChar(parser, createHiddenClosingPost(50_000));
+        System.out.printf("%-16s %8.1f ns/char at 50k, %8.1f at 400k%n",
+                "preview [/u]", shortPreviewRate, longPreviewRate);
+        if (growsTooFast(shortPreviewRate * 50_000, longPreviewRate * 400_000)) {
+            failures.add(String.format("preview [/u]: %.1fx the time for 8x the length",
+                    longPreviewRate / shortPreviewRate * 8));
+        }
+
+        // only with limits, the unlimited parser runs out of memory on them
+        BBCodeParser shortLimitedParser = limitedParser.toBuilder().withMaxOutputLength(1 << 17).build();
+        for (String[] nested : nestedTags) {
+            String post = createNestedPost(nested[0], nested[1], Integer.parseInt(nested[2]));
+            double shortNanos = nanos(shortLimitedParser, post);
+            double longNanos = nanos(limitedParser, post);
+            String name = nested[2] + " x " + nested[0];
+            System.out.printf("%-16s %8.1f ms with 128k chars of HTML, %8.1f with 1M%n",
+                    name, shortNanos / 1e6, longNanos / 1e6);
+            if (growsTooFast(shortNanos, longNanos)) {
+                failures.add(String.format("%s: %.1fx the time for 8x the HTML", name, longNanos / shortNanos));
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            throw new AssertionError("time grows more than linearly: " + String.join(", ", failures));
+        }
+    }
+
+    // whether 8x the work took more than linearly longer, times under a millisecond count as one against noise
+    private static boolean growsTooFast(double shortNanos, double longNanos) {
+        return longNanos > Math.max(shortNanos, 1e6) * 8 * MAX_GROWTH;
+    }
+
+    // the best of a few previews of a single char, which follow the rest of the post to tell whether it was cut
+    private static double previewNanosPerChar(BBCodeParser parser, String post) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            parser.parseToHTMLPreview(post, 1);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / post.length();
+    }
+
+    private static double nanosPerChar(BBCodeParser parser, String post) {
+        return (double) nanos(parser, post) / post.length();
+    }
+
+    // the best of a few runs, the first ones include compiling the parser
+    private static long nanos(BBCodeParser parser, String post) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            parser.parseToHTML(post);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    static String createAdversarialPost(String pattern, int length) {
+        StringBuilder post = new StringBuilder(length + pattern.length());
+        while (post.length() < length) {
+            post.append(pattern);
+        }
+        return post.toString();
+    }
+
+    // an image around half the length of opening tags and half of closing tags of another name
+    static String createHiddenClosingPost(int length) {
+        StringBuilder post = new StringBuilder(length + 16).append("x[img]");
+        while (post.length() < length / 2) {
+            post.append("[b]");
+        }
+        while (post.length() < length) {
+            post.append("[/u]");
+        }
+        return post.toString();
+    }
+
+    static String createNestedPost(String tagName, String content, int depth) {
+        StringBuilder post = new StringBuilder();
+        for (int i = 0; i < depth; i++) {
+            post.append('[').append(tagName).append(']');
+        }
+        post.append(content);
+        for (int i = 0; i < depth; i++) {
+            post.append("[/").append(tagName).append(']');
+        }
+        return post.toString();
+    }
+
+    static List<String> createPosts(int count, Random random) {
+        List<String> posts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            StringBuilder post = new StringBuilder();
+            int length = 1 + random.nextInt(30);
+            for (int j = 0; j < length; j++) {
+                post.append(fragments[random.nextInt(fragments.length)]);
+            }
+            posts.add(post.toString());
+        }
+        return posts;
+    }
+}
@@ -0,0 +1,114 @@
+package demo.vencs;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+
+/*
+ *  Measures parseToHTML and removeBBCodeTag of BBCodeParser over a corpus of post shapes, one after another on a single
+ *  thread: throughput, latency percentiles and the bytes allocated per call. Run it before and after a parser change.
+ *  Allocation is read from com.sun.management.ThreadMXBean and reported as n/a on JVMs without it.
+ *  Usage: java demo.vencs.BBCodeParserCorpusBenchmark [seconds per measurement] [case name...]
+ */
+public class BBCodeParserCorpusBenchmark {
+    private static final int MAX_SAMPLES = 1_000_000;
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        List<String> selected = Arrays.asList(args).subList(Math.min(1, args.length), args.length);
+        BBCodeParser parser = BBCodeParser.getInstance();
+
+        Map<String, Function<String, String>> operations = new LinkedHashMap<>();
+        operations.put("parseToHTML", parser::parseToHTML);
+        operations.put("removeBBCodeTag", parser::removeBBCodeTag);
+
+        System.out.printf("%-12s %-16s %12s %10s %10s %10s %10s %12s%n",
+                "case", "operation", "ops/s", "p50 us", "p90 us", "p99 us", "max us", "bytes/op");
+        for (Map.Entry<String, String> corpusCase : createCorpus(new Random(42)).entrySet()) {
+            if (!selected.isEmpty() && !selected.contains(corpusCase.getKey())) continue;
+
+            for (Map.Entry<String, Function<String, String>> operation : operations.entrySet()) {
+                measure(operation.getValue(), corpusCase.getValue(), seconds); // warm up
+                Result result = measure(operation.getValue(), corpusCase.getValue(), seconds);
+                System.out.printf("%-12s %-16s %,12.0f %10.1f %10.1f %10.1f %10.1f %12s%n",
+                        corpusCase.getKey(), operation.getKey(), result.opsPerSecond,
+                        result.percentile(0.50), result.percentile(0.90), result.percentile(0.99),
+                        result.percentile(1.0), result.bytesPerOp < 0 ? "n/a" : String.format("%,d", result.bytesPerOp));
+            }
+        }
+    }
+
+    static Map<String, String> createCorpus(Random random) {
+        Map<String, String> corpus = new LinkedHashMap<>();
+        corpus.put("tiny", "[b]Thanks![/b] works for me :)");
+        corpus.put("typical", String.join("", BBCodeParserBenchmark.createPosts(1, random)));
+
+        StringBuilder large = new StringBuilder();
+        for (String post : BBCodeParserBenchmark.createPosts(1000, random)) {
+            if (large.length() >= 100 * 1024) break;
+            large.append(post);
+        }
+        corpus.put("100kb", large.toString());
+
+        corpus.put("quotes", repeat("[quote]someone wrote:\n", 1000) + "the reply" + repeat("[/quote]", 1000));
+        corpus.put("list", "[list]" + repeat("[*]an item with [b]bold[/b] text\n", 10_000) + "[/list]");
+        corpus.put("code", repeat("[code]for (int i = 0; i < n; i++) { a[i] = b[i] [b]not bold[/b]; }[/code]\n", 1000));
+        corpus.put("unclosed", repeat("[b][i][color=red][url=https://example.com]text ", 2500));
+        return corpus;
+    }
+
+    private static String repeat(String s, int count) {
+        StringBuilder sb = new StringBuilder(s.length() * count);
+        for (int i = 0; i < count; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    private static Result measure(Function<String, String> operation, String post, int seconds) {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocationBean = threadBean instanceof com.sun.management.ThreadMXBean
+                ? (com.sun.management.ThreadMXBean) threadBean : null;
+        long threadId = Thread.currentThread().getId();
+
+        long[] samples = new long[MAX_SAMPLES];
+        int count = 0;
+        long sink = 0;
+        long allocatedBefore = allocationBean != null ? allocationBean.getThreadAllocatedBytes(threadId) : 0;
+        long start = System.nanoTime();
+        long deadline = start + seconds * 1_000_000_000L;
+        long now = start;
+        while (now < deadline && count < MAX_SAMPLES) {
+            sink += operation.apply(post).length();
+            long end = System.nanoTime();
+            samples[count++] = end - now;
+            now = end;
+        }
+        long allocated = allocationBean != null ? allocationBean.getThreadAllocatedBytes(threadId) - allocatedBefore : -1;
+        if (sink == 42) System.out.print(""); // keeps the results alive
+
+        Result result = new Result();
+        result.samples = Arrays.copyOf(samples, count);
+        Arrays.sort(result.samples);
+        result.opsPerSecond = count / ((now - start) / 1e9);
+        result.bytesPerOp = allocated < 0 ? -1 : allocated / count;
+        return result;
+    }
+
+    private static class Result {
+        private long[] samples;
+        private double opsPerSecond;
+        private long bytesPerOp;
+
+        // in microseconds
+        private double percentile(double p) {
+            int index = (int) Math.ceil(p * samples.length) - 1;
+            return samples[Math.max(0, index)] / 1000.0;
+        }
+    }
+}
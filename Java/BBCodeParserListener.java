@@ -0,0 +1,9 @@
+package demo.vencs;
+
+/*
+ *  Receives an event for every post a parser renders once it is set with BBCodeParser#setListener.
+ *  It is called on the rendering thread right after each post, so it has to be thread safe and fast.
+ */
+public interface BBCodeParserListener {
+    void postRendered(BBCodeParseEvent event);
+}
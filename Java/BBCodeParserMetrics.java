@@ -0,0 +1,140 @@
+package demo.vencs;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+ *  A listener that sums up the events of a parser and shows them through JMX, e.g.
+ *    BBCodeParserMetrics metrics = new BBCodeParserMetrics();
+ *    metrics.register("posts");
+ *    parser.setListener(metrics);
+ *
+ *  The total latency of every post goes into a histogram with four buckets per power of two of nanoseconds.
+ */
+public class BBCodeParserMetrics implements BBCodeParserListener, BBCodeParserMetricsMBean {
+    private final LongAdder postCount = new LongAdder();
+    private final LongAdder limitExceededCount = new LongAdder();
+    private final LongAdder failedCount = new LongAdder();
+    private final LongAdder inputChars = new LongAdder();
+    private final LongAdder outputChars = new LongAdder();
+    private final LongAdder elementCount = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder renderNanos = new LongAdder();
+    private final BBCodeLatencyHistogram histogram = new BBCodeLatencyHistogram();
+
+    /*
+     *  Registers the metrics with the platform MBean server as demo.vencs:type=BBCodeParser,name=<name>.
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("demo.vencs:type=BBCodeParser,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public void postRendered(BBCodeParseEvent event) {
+        postCount.increment();
+        if (event.getOutcome() == BBCodeParseEvent.Outcome.LIMIT_EXCEEDED) {
+            limitExceededCount.increment();
+        } else if (event.getOutcome() == BBCodeParseEvent.Outcome.FAILED) {
+            failedCount.increment();
+        }
+        inputChars.add(event.getInputLength());
+        outputChars.add(event.getOutputLength());
+        elementCount.add(event.getElementCount());
+        parseNanos.add(event.getParseNanos());
+        renderNanos.add(event.getRenderNanos());
+
+        histogram.record(event.getTotalNanos());
+    }
+
+    @Override
+    public long getPostCount() {
+        return postCount.sum();
+    }
+
+    @Override
+    public long getLimitExceededCount() {
+        return limitExceededCount.sum();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failedCount.sum();
+    }
+
+    @Override
+    public long getInputChars() {
+        return inputChars.sum();
+    }
+
+    @Override
+    public long getOutputChars() {
+        return outputChars.sum();
+    }
+
+    @Override
+    public long getElementCount() {
+        return elementCount.sum();
+    }
+
+    @Override
+    public double getMeanParseMicros() {
+        long count = postCount.sum();
+        return count == 0 ? 0 : parseNanos.sum() / 1000.0 / count;
+    }
+
+    @Override
+    public double getMeanRenderMicros() {
+        long count = postCount.sum();
+        return count == 0 ? 0 : renderNanos.sum() / 1000.0 / count;
+    }
+
+    @Override
+    public double getP50Micros() {
+        return histogram.percentileMicros(0.50);
+    }
+
+    @Override
+    public double getP90Micros() {
+        return histogram.percentileMicros(0.90);
+    }
+
+    @Override
+    public double getP99Micros() {
+        return histogram.percentileMicros(0.99);
+    }
+
+    @Override
+    public double getMaxMicros() {
+        return histogram.getMaxMicros();
+    }
+
+    @Override
+    public long[] getLatencyHistogram() {
+        return histogram.getCounts();
+    }
+
+    /*
+     *  The highest latency counted in a bucket of getLatencyHistogram.
+     */
+    public static long getBucketUpperBoundNanos(int bucket) {
+        return BBCodeLatencyHistogram.upperBoundNanos(bucket);
+    }
+
+    @Override
+    public void reset() {
+        postCount.reset();
+        limitExceededCount.reset();
+        failedCount.reset();
+        inputChars.reset();
+        outputChars.reset();
+        elementCount.reset();
+        parseNanos.reset();
+        renderNanos.reset();
+        histogram.reset();
+    }
+}
@@ -0,0 +1,36 @@
+package demo.vencs;
+
+/*
+ *  The JMX view of BBCodeParserMetrics. Latencies are in microseconds, taken from histograms whose buckets are
+ *  at most a quarter of their lower bound wide, so percentiles are accurate to within 25%.
+ */
+public interface BBCodeParserMetricsMBean {
+    long getPostCount();
+
+    long getLimitExceededCount();
+
+    long getFailedCount();
+
+    long getInputChars();
+
+    long getOutputChars();
+
+    long getElementCount();
+
+    double getMeanParseMicros();
+
+    double getMeanRenderMicros();
+
+    double getP50Micros();
+
+    double getP90Micros();
+
+    double getP99Micros();
+
+    double getMaxMicros();
+
+    // the number of posts per latency bucket, see BBCodeParserMetrics#getBucketUpperBoundNanos
+    long[] getLatencyHistogram();
+
+    void reset();
+}
@@ -0,0 +1,57 @@
+package demo.vencs;
+
+/*
+ *  Renders the events of a parsed post to plain text with the removeBBCodeTag semantics:
+ *  a closed tag is replaced by its content, except [br] which becomes a line break, and everything else is kept as written.
+ */
+class BBCodePlainTextRenderer implements BBCodeVisitor {
+    private final StringBuilder text;
+    private final int maxLength;
+    private int hiddenDepth;
+
+    BBCodePlainTextRenderer(StringBuilder text) {
+        this(text, Integer.MAX_VALUE);
+    }
+
+    /*
+     *  Writes at most maxLength chars, without splitting a surrogate pair.
+     */
+    BBCodePlainTextRenderer(StringBuilder text, int maxLength) {
+        this.text = text;
+        this.maxLength = maxLength;
+    }
+
+    @Override
+    public void text(CharSequence source, int start, int end) {
+        if (hiddenDepth == 0) {
+            append(source, start, end);
+        }
+    }
+
+    @Override
+    public void openElement(BBCodeTag tag, String param) {
+        if (hiddenDepth > 0 || "br".equals(tag.getTagName())) {
+            if (hiddenDepth++ == 0) {
+                append("\r\n", 0, 2);
+            }
+        }
+    }
+
+    @Override
+    public void closeElement() {
+        if (hiddenDepth > 0) {
+            hiddenDepth--;
+        }
+    }
+
+    private void append(CharSequence source, int start, int end) {
+        int room = maxLength - text.length();
+        if (end - start > room) {
+            end = start + Math.max(room, 0);
+            if (end > start && Character.isHighSurrogate(source.charAt(end - 1))) {
+                end--;
+            }
+        }
+        text.append(source, start, end);
+    }
+}
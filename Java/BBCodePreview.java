@@ -0,0 +1,197 @@
+package demo.vencs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *  The live preview of a draft being edited, created by BBCodeParser#preview. It keeps the draft split into its top-level
+ *  nodes together with their HTML, and an edit parses and renders again only the nodes it can have changed:
+ *    - the nodes before the edit are kept when the tokenizer had not looked at the edited text yet while building them
+ *    - parsing starts after them and stops at the first top-level node that ends where an unchanged node used to start,
+ *      since the rest of the draft is then parsed exactly as before and its nodes are kept as well
+ *  So the cost of an edit depends on the size of the nodes around it rather than on the size of the draft. An edit that
+ *  leaves a tag open, e.g. while its closing tag is being typed, turns the rest of the draft into its content, which
+ *  is then parsed again up to the end.
+ *
+ *  The HTML equals parseToHTML of the draft, except that a top-level node whose callbacks fail is shown as it is
+ *  written instead of the whole draft, as render(Reader, Appendable) does. The depth and tag limits of the parser
+ *  apply to the part of the draft parsed again, the output limit to each top-level node.
+ *  A preview belongs to a single editor, it is not safe to use from several threads at once.
+ */
+public class BBCodePreview {
+    private final BBCodeParser parser;
+    private final StringBuilder text;
+    private final List<Block> blocks = new ArrayList<>();
+    private int htmlLength;
+
+    BBCodePreview(BBCodeParser parser, String text) {
+        this.parser = parser;
+        this.text = new StringBuilder(text);
+        htmlLength = reparse(0, Integer.MAX_VALUE, 0).getInsertedHTML().length();
+    }
+
+    public String getText() {
+        return text.toString();
+    }
+
+    public String getHTML() {
+        StringBuilder html = new StringBuilder(htmlLength);
+        for (Block block : blocks) {
+            html.append(block.html);
+        }
+        return html.toString();
+    }
+
+    /*
+     *  Replaces removedLength chars of the draft at offset with the inserted text and returns the change of the HTML.
+     */
+    public Change edit(int offset, int removedLength, String inserted) {
+        if (offset < 0 || removedLength < 0 || removedLength > text.length() - offset) {
+            throw new IndexOutOfBoundsException("Edit of " + removedLength + " chars at " + offset
+                    + " outside of a draft of " + text.length() + " chars");
+        }
+        text.replace(offset, offset + removedLength, inserted);
+
+        // the horizons only grow from node to node, so the kept nodes are the ones before the first one reaching offset
+        int low = 0, high = blocks.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (blocks.get(middle).horizon < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        Change change = reparse(low, offset + removedLength, inserted.length() - removedLength);
+        htmlLength += change.insertedHTML.length() - change.removedLength;
+        return change;
+    }
+
+    /*
+     *  Parses the new text from the end of blocks[first - 1] and replaces the blocks up to the first old block the
+     *  parse falls in step with, which can only start at or after editEnd (in old positions). The blocks after it are
+     *  moved by delta.
+     */
+    private Change reparse(int first, int editEnd, int delta) {
+        int parseStart = first == 0 ? 0 : blocks.get(first - 1).end;
+        int htmlOffset = 0;
+        for (int i = 0; i < first; i++) {
+            htmlOffset += blocks.get(i).html.length();
+        }
+
+        // kept at least as high as the horizon of the kept blocks, so the horizons keep growing from block to block
+        int baseHorizon = first == 0 ? 0 : blocks.get(first - 1).horizon;
+        List<Block> parsed = new ArrayList<>();
+        int[] sync = {blocks.size()};
+        BBCodeTreeBuilder builder = parser.newTreeBuilder(text);
+        builder.startAt(parseStart);
+        StringBuilder html = new StringBuilder();
+        try {
+            builder.build(node -> {
+                int end = node.isText() ? node.getEnd() : node.getOuterEnd();
+                parser.renderTopLevel(node, html, parser.getMaxOutputLength());
+                parsed.add(new Block(node.getStart(), end, Math.max(baseHorizon, builder.getHorizon()), html.toString()));
+                html.setLength(0);
+
+                if (end - delta >= editEnd) {
+                    int oldBlock = findBlock(end - delta, first);
+                    if (oldBlock >= 0) {
+                        sync[0] = oldBlock;
+                        builder.stop();
+                    }
+                }
+            });
+        } catch (BBCodeLimitExceededException e) {
+            // shown as it is written, like render(Reader, Appendable) does
+            int start = builder.getUnfinishedStart();
+            html.setLength(0);
+            parser.appendSource(text, start, text.length(), html);
+            parsed.add(new Block(start, text.length(), text.length(), html.toString()));
+            sync[0] = blocks.size();
+        }
+
+        int removedLength = 0;
+        for (int i = first; i < sync[0]; i++) {
+            removedLength += blocks.get(i).html.length();
+        }
+        int lastHorizon = parsed.isEmpty() ? baseHorizon : parsed.get(parsed.size() - 1).horizon;
+        for (int i = sync[0]; i < blocks.size(); i++) {
+            Block block = blocks.get(i);
+            block.start += delta;
+            block.end += delta;
+            block.horizon = Math.max(block.horizon + delta, lastHorizon);
+        }
+        blocks.subList(first, sync[0]).clear();
+        blocks.addAll(first, parsed);
+
+        StringBuilder insertedHTML = new StringBuilder();
+        for (Block block : parsed) {
+            insertedHTML.append(block.html);
+        }
+        return new Change(htmlOffset, removedLength, insertedHTML.toString());
+    }
+
+    // the index of the old block starting at start, from the first one not parsed again, or -1
+    private int findBlock(int start, int first) {
+        int low = first, high = blocks.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int blockStart = blocks.get(middle).start;
+            if (blockStart < start) {
+                low = middle + 1;
+            } else if (blockStart > start) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     *  The HTML of the preview changes by replacing removedLength chars at offset with the inserted HTML.
+     */
+    public static class Change {
+        private final int offset;
+        private final int removedLength;
+        private final String insertedHTML;
+
+        private Change(int offset, int removedLength, String insertedHTML) {
+            this.offset = offset;
+            this.removedLength = removedLength;
+            this.insertedHTML = insertedHTML;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getRemovedLength() {
+            return removedLength;
+        }
+
+        public String getInsertedHTML() {
+            return insertedHTML;
+        }
+
+        public void applyTo(StringBuilder html) {
+            html.replace(offset, offset + removedLength, insertedHTML);
+        }
+    }
+
+    // a top-level node of the draft, its HTML and the horizon of the tokenizer once it was built
+    private static class Block {
+        private int start;
+        private int end;
+        private int horizon;
+        private final String html;
+
+        private Block(int start, int end, int horizon, String html) {
+            this.start = start;
+            this.end = end;
+            this.horizon = horizon;
+            this.html = html;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package demo.vencs;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/*
+ *  A parser whose tag set can be changed while posts are rendered, e.g. by an admin adding or disabling a tag:
+ *    reloadable.update(builder -> builder.withoutTags("img"));
+ *  Each change builds a new immutable parser and swaps it in atomically as the next version. Renders never wait for
+ *  a change, a render that started on the previous version finishes on it and the next render gets the new one.
+ *  A render that calls the parser more than once should take the parser from get() once and use it throughout.
+ *
+ *  update() carries the listener and the render store over to the new version, the store is keyed by how the tags
+ *  render, so the posts rendered with the previous tags are not served from it. The render cache is not keyed so and
+ *  holds HTML rendered with the previous tags, so the new version gets an empty cache with the same limits instead,
+ *  and the hit and miss counts start over with it. set() swaps the parser in as it is, with whatever listener, cache
+ *  and store were set on it.
+ */
+public class BBCodeReloadableParser {
+    private final AtomicReference<Version> current;
+
+    public BBCodeReloadableParser(BBCodeParser parser) {
+        current = new AtomicReference<>(new Version(parser, 1));
+    }
+
+    public BBCodeParser get() {
+        return current.get().parser;
+    }
+
+    /*
+     *  Starts at 1 and grows by one with every change.
+     */
+    public long getVersion() {
+        return current.get().number;
+    }
+
+    /*
+     *  Applies the change to a builder of the current parser and swaps in the parser it builds, returning its version.
+     *  When another change is swapped in first, the change is applied again to the parser of that one,
+     *  so it has to be free of side effects.
+     */
+    public long update(UnaryOperator<BBCodeParser.Builder> change) {
+        while (true) {
+            Version previous = current.get();
+            BBCodeParser parser = change.apply(previous.parser.toBuilder()).build();
+            parser.setListener(previous.parser.getListener());
+            parser.setRenderStore(previous.parser.getRenderStore());
+            BBCodeRenderCache renderCache = previous.parser.getRenderCache();
+            if (renderCache != null) {
+                parser.setRenderCache(renderCache.emptyCopy());
+            }
+            Version next = new Version(parser, previous.number + 1);
+            if (current.compareAndSet(previous, next)) {
+                return next.number;
+            }
+        }
+    }
+
+    /*
+     *  Swaps in a parser built elsewhere, e.g. from a configuration file, as is.
+     */
+    public long set(BBCodeParser parser) {
+        while (true) {
+            Version previous = current.get();
+            Version next = new Version(parser, previous.number + 1);
+            if (current.compareAndSet(previous, next)) {
+                return next.number;
+            }
+        }
+    }
+
+    public String parseToHTML(String text) {
+        return get().parseToHTML(text);
+    }
+
+    public String removeBBCodeTag(String text) {
+        return get().removeBBCodeTag(text);
+    }
+
+    private static class Version {
+        private final BBCodeParser parser;
+        private final long number;
+
+        private Version(BBCodeParser parser, long number) {
+            this.parser = parser;
+            this.number = number;
+        }
+    }
+}
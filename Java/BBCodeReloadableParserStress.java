@@ -0,0 +1,100 @@
+package demo.vencs;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ *  Renders a post on many threads while the tag set of a reloadable parser is changed over and over, through the
+ *  render cache and store carried over by update(). Each thread renders the post twice on the parser it took from
+ *  get(), and the check fails when either render differs from the HTML of that parser rendered without cache or store.
+ *  Usage: java demo.vencs.BBCodeReloadableParserStress [change count] [thread count]
+ */
+public class BBCodeReloadableParserStress {
+    private static final String POST = "[b]bold[/b] [color=red]red [i]italic[/i][/color] "
+            + "[img]https://example.com/a.png[/img] [list][*]one[*]two[/list]";
+
+    public static void main(String[] args) throws Exception {
+        int changeCount = args.length > 0 ? Integer.parseInt(args[0]) : 20_000;
+        int threadCount = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        BBCodeParser withB = BBCodeParser.builder().build();
+        BBCodeParser withoutB = BBCodeParser.builder().withoutTags("b").build();
+        // the HTML of each version, rendered by a copy of its parser without cache or store
+        Map<BBCodeParser, String> expected = new ConcurrentHashMap<>();
+
+        Path file = Files.createTempFile("bbcode-render-store", ".bin");
+        Files.delete(file);
+        try (BBCodeRenderStore store = BBCodeRenderStore.open(file, 64, 1 << 20)) {
+            // the parsers swapped in by set() bring their own cache and share the store
+            for (BBCodeParser parser : new BBCodeParser[] {withB, withoutB}) {
+                parser.setRenderCache(new BBCodeRenderCache(64, 1 << 20));
+                parser.setRenderStore(store);
+            }
+            BBCodeReloadableParser reloadable = new BBCodeReloadableParser(withB);
+
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicLong renderCount = new AtomicLong();
+            AtomicLong mismatchCount = new AtomicLong();
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+            List<Future<?>> renders = new ArrayList<>();
+            for (int i = 0; i < threadCount; i++) {
+                renders.add(executor.submit(() -> {
+                    while (!stop.get()) {
+                        BBCodeParser parser = reloadable.get();
+                        String html = parser.parseToHTML(POST);
+                        String expectedHTML = expected.computeIfAbsent(parser,
+                                version -> version.toBuilder().build().parseToHTML(POST));
+                        if (!html.equals(expectedHTML) || !html.equals(parser.parseToHTML(POST))) {
+                            mismatchCount.incrementAndGet();
+                        }
+                        renderCount.incrementAndGet();
+                    }
+                }));
+            }
+
+            Random random = new Random(1);
+            try {
+                for (int i = 0; i < changeCount; i++) {
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            reloadable.update(builder -> builder.withoutTags("b"));
+                            break;
+                        case 1:
+                            reloadable.update(builder -> builder.addTag(new BBCodeTag("b")));
+                            break;
+                        case 2:
+                            reloadable.update(builder -> builder.withoutTags("color"));
+                            break;
+                        default:
+                            reloadable.set(random.nextBoolean() ? withB : withoutB);
+                    }
+                }
+            } finally {
+                stop.set(true);
+                for (Future<?> render : renders) {
+                    render.get();
+                }
+                executor.shutdown();
+            }
+
+            if (mismatchCount.get() > 0) {
+                throw new AssertionError(mismatchCount.get() + " of " + renderCount.get()
+                        + " renders gave unexpected HTML");
+            }
+            System.out.println(renderCount.get() + " renders over " + reloadable.getVersion()
+                    + " versions gave the expected HTML");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package demo.vencs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/*
+ *  A bounded LRU cache of rendered posts, keyed by a SHA-256 hash of the BBCode so the posts themselves are not kept.
+ *  A cryptographic hash is used since the posts are written by users, who could otherwise craft a colliding post to
+ *  have another post's HTML shown for it. The entries are spread over segments, each guarded by its own lock,
+ *  and the limits on entry count and total HTML length are split evenly between the segments.
+ */
+public class BBCodeRenderCache {
+    private static final int SEGMENT_COUNT = 16;
+    private final int maxEntries;
+    private final long maxChars;
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * @param maxEntries maximum number of cached posts
+     * @param maxChars   maximum total length of the cached HTML
+     */
+    public BBCodeRenderCache(int maxEntries, long maxChars) {
+        if (maxEntries <= 0 || maxChars <= 0) {
+            throw new IllegalArgumentException("maxEntries and maxChars must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxChars = maxChars;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(Math.max(1, maxEntries / SEGMENT_COUNT + (i < maxEntries % SEGMENT_COUNT ? 1 : 0)),
+                    Math.max(1, maxChars / SEGMENT_COUNT + (i < maxChars % SEGMENT_COUNT ? 1 : 0)));
+        }
+    }
+
+    /*
+     *  Returns the cached HTML of the text, or renders and caches it. The text is rendered outside of the segment lock,
+     *  so two threads missing the same post at once may both render it.
+     */
+    String get(String text, Function<String, String> renderer) {
+        BBCodeContentKey key = BBCodeContentKey.of(text);
+        Segment segment = segments[(int) (key.low >>> 32) & (SEGMENT_COUNT - 1)];
+
+        String html = segment.get(key);
+        if (html != null) {
+            hitCount.increment();
+            return html;
+        }
+        missCount.increment();
+
+        html = renderer.apply(text);
+        evictionCount.add(segment.put(key, html));
+        return html;
+    }
+
+    /*
+     *  Returns an empty cache with the same limits.
+     */
+    BBCodeRenderCache emptyCopy() {
+        return new BBCodeRenderCache(maxEntries, maxChars);
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getTotalChars() {
+        long totalChars = 0;
+        for (Segment segment : segments) {
+            totalChars += segment.getTotalChars();
+        }
+        return totalChars;
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    private static class Segment {
+        private final int maxEntries;
+        private final long maxChars;
+        private final LinkedHashMap<BBCodeContentKey, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long totalChars;
+
+        private Segment(int maxEntries, long maxChars) {
+            this.maxEntries = maxEntries;
+            this.maxChars = maxChars;
+        }
+
+        private synchronized String get(BBCodeContentKey key) {
+            return entries.get(key);
+        }
+
+        // returns the number of evicted entries
+        private synchronized int put(BBCodeContentKey key, String html) {
+            if (html.length() > maxChars) return 0;
+
+            String previous = entries.put(key, html);
+            if (previous != null) {
+                totalChars -= previous.length();
+            }
+            totalChars += html.length();
+
+            int evicted = 0;
+            Iterator<Map.Entry<BBCodeContentKey, String>> iterator = entries.entrySet().iterator();
+            while ((entries.size() > maxEntries || totalChars > maxChars) && iterator.hasNext()) {
+                Map.Entry<BBCodeContentKey, String> eldest = iterator.next();
+                if (eldest.getKey().equals(key)) continue;
+
+                totalChars -= eldest.getValue().length();
+                iterator.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        private synchronized int size() {
+            return entries.size();
+        }
+
+        private synchronized long getTotalChars() {
+            return totalChars;
+        }
+
+        private synchronized void clear() {
+            entries.clear();
+            totalChars = 0;
+        }
+    }
+}
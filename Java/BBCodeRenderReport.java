@@ -0,0 +1,85 @@
+package demo.vencs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ *  The HTML of a post together with what it links to and which tags it uses, collected by BBCodeParser#parseToHTMLWithReport
+ *  while the HTML is rendered, e.g. for a spam filter. The links, image sources and email addresses are the ones
+ *  written into the HTML: percent-encoded and with their entities decoded, as a browser follows them. Invalid ones,
+ *  written without a link, and the ones in hidden content, e.g. in the source of an image, are left out.
+ *  A post shown as it is written because it could not be rendered has none of them.
+ */
+public class BBCodeRenderReport {
+    private String html;
+    private final List<String> links = new ArrayList<>();
+    private final List<String> images = new ArrayList<>();
+    private final List<String> emails = new ArrayList<>();
+    private final Map<String, Integer> tagCounts = new LinkedHashMap<>();
+
+    BBCodeRenderReport() {
+    }
+
+    /*
+     *  As parseToHTML returns it.
+     */
+    public String getHTML() {
+        return html;
+    }
+
+    public List<String> getLinks() {
+        return Collections.unmodifiableList(links);
+    }
+
+    public List<String> getImages() {
+        return Collections.unmodifiableList(images);
+    }
+
+    public List<String> getEmails() {
+        return Collections.unmodifiableList(emails);
+    }
+
+    /*
+     *  The number of elements rendered per tag name. Tags written back as text, e.g. ones that are never closed,
+     *  are not counted.
+     */
+    public Map<String, Integer> getTagCounts() {
+        return Collections.unmodifiableMap(tagCounts);
+    }
+
+    void setHTML(String html) {
+        this.html = html;
+    }
+
+    // records the open tag written to html[start, end)
+    void tagWritten(BBCodeTag tag, CharSequence html, int start, int end) {
+        tagCounts.merge(tag.getTagName(), 1, Integer::sum);
+        if (!(tag instanceof BBCodeLinkTag)) return;
+
+        BBCodeLinkTag linkTag = (BBCodeLinkTag) tag;
+        String link = linkTag.getWrittenLink(html, start, end);
+        if (link == null) return;
+        link = BBCodeHTMLEscaper.unescapeHTML(link);
+        switch (linkTag.getKind()) {
+            case URL:
+                links.add(link);
+                break;
+            case IMAGE:
+                images.add(link);
+                break;
+            default:
+                emails.add(link);
+        }
+    }
+
+    // forgets everything collected, once the post is shown as it is written instead
+    void clear() {
+        links.clear();
+        images.clear();
+        emails.clear();
+        tagCounts.clear();
+    }
+}
@@ -0,0 +1,39 @@
+package demo.vencs;
+
+/*
+ *  The HTML, the plain text and optionally a plain text preview of a post, rendered from a single parse by
+ *  BBCodeParser#parseToHTMLAndText.
+ */
+public class BBCodeRenderResult {
+    private final String html;
+    private final String plainText;
+    private final String preview;
+
+    BBCodeRenderResult(String html, String plainText, String preview) {
+        this.html = html;
+        this.plainText = plainText;
+        this.preview = preview;
+    }
+
+    /*
+     *  As parseToHTML returns it.
+     */
+    public String getHTML() {
+        return html;
+    }
+
+    /*
+     *  As removeBBCodeTag returns it.
+     */
+    public String getPlainText() {
+        return plainText;
+    }
+
+    /*
+     *  The first previewLength chars of the plain text, without splitting a surrogate pair, or null when no preview
+     *  was asked for.
+     */
+    public String getPreview() {
+        return preview;
+    }
+}
@@ -0,0 +1,318 @@
+package demo.vencs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/*
+ *  An HTTP front of a parser for services that do not run on the JVM, built on the JDK HTTP server:
+ *    POST /html          the UTF-8 body rendered by parseUTF8ToHTML
+ *    POST /text[?max=N]  the UTF-8 body rendered by removeBBCodeTag, cut after N chars of text, which is not always
+ *                        a prefix of its whole plain text, see BBCodeParser#removeBBCodeTag(String, int)
+ *    GET  /metrics       request counts and latencies as name value lines
+ *
+ *  Each request runs on a virtual thread where the JVM has them (Java 21 and later), otherwise on a bounded pool.
+ *  At most maxConcurrent requests are rendered at once, a request waits up to admissionTimeoutMillis for its turn
+ *  and is then answered with 503 and Retry-After, so an overload is pushed back to the callers instead of queueing
+ *  up in memory. A request the bounded pool has no room for is answered with 503 right away. Bodies over
+ *  maxRequestBytes are answered with 413 before they are read when they declare their length, and after reading
+ *  maxRequestBytes of them otherwise.
+ *  Latencies run from the request being handed to the server's executor to the response being written.
+ */
+public class BBCodeRenderServer {
+    private final BBCodeParser parser;
+    private final int maxConcurrent;
+    private final int maxRequestBytes;
+    private final long admissionTimeoutMillis;
+    private final Semaphore admission;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    // set while a request the bounded pool had no room for runs on the server's dispatcher thread
+    private final ThreadLocal<Boolean> overflow = new ThreadLocal<>();
+
+    private final LongAdder requestCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder tooLargeCount = new LongAdder();
+    private final LongAdder badRequestCount = new LongAdder();
+    private final LongAdder inputBytes = new LongAdder();
+    private final LongAdder outputBytes = new LongAdder();
+    private final BBCodeLatencyHistogram latencies = new BBCodeLatencyHistogram();
+
+    public BBCodeRenderServer(BBCodeParser parser, InetSocketAddress address, int maxConcurrent, int maxRequestBytes,
+                              long admissionTimeoutMillis) throws IOException {
+        if (maxConcurrent < 1 || maxRequestBytes < 0 || admissionTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Invalid limits " + maxConcurrent + ", " + maxRequestBytes + ", "
+                    + admissionTimeoutMillis);
+        }
+        this.parser = parser;
+        this.maxConcurrent = maxConcurrent;
+        this.maxRequestBytes = maxRequestBytes;
+        this.admissionTimeoutMillis = admissionTimeoutMillis;
+        admission = new Semaphore(maxConcurrent);
+
+        server = HttpServer.create(address, 0);
+        executor = newRequestExecutor();
+        server.setExecutor(executor);
+        server.createContext("/html", exchange -> handle(exchange, false));
+        server.createContext("/text", exchange -> handle(exchange, true));
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /*
+     *  Stops accepting requests and waits at most delaySeconds for the running ones to finish.
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdownNow();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public long getRequestCount() {
+        return requestCount.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    public long getTooLargeCount() {
+        return tooLargeCount.sum();
+    }
+
+    public double getP50Micros() {
+        return latencies.percentileMicros(0.50);
+    }
+
+    public double getP99Micros() {
+        return latencies.percentileMicros(0.99);
+    }
+
+    public double getMaxMicros() {
+        return latencies.getMaxMicros();
+    }
+
+    private void handle(HttpExchange exchange, boolean plainText) throws IOException {
+        long startTime = System.nanoTime();
+        requestCount.increment();
+        try {
+            if (overflow.get() != null) {
+                reject(exchange);
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendError(exchange, 405, "Only POST is supported");
+                return;
+            }
+            int maxLength = Integer.MAX_VALUE;
+            if (plainText) {
+                maxLength = parseMaxLength(exchange.getRequestURI());
+                if (maxLength < 0) {
+                    badRequestCount.increment();
+                    sendError(exchange, 400, "Invalid max");
+                    return;
+                }
+            }
+            if (contentLength(exchange) > maxRequestBytes) {
+                tooLargeCount.increment();
+                sendError(exchange, 413, "The post is over " + maxRequestBytes + " bytes");
+                return;
+            }
+
+            try {
+                if (!admission.tryAcquire(admissionTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    reject(exchange);
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                byte[] body = readBody(exchange.getRequestBody());
+                if (body == null) {
+                    tooLargeCount.increment();
+                    sendError(exchange, 413, "The post is over " + maxRequestBytes + " bytes");
+                    return;
+                }
+                inputBytes.add(body.length);
+
+                byte[] response;
+                String contentType;
+                if (plainText) {
+                    response = parser.removeBBCodeTag(new String(body, StandardCharsets.UTF_8), maxLength)
+                            .getBytes(StandardCharsets.UTF_8);
+                    contentType = "text/plain; charset=UTF-8";
+                } else {
+                    response = parser.parseUTF8ToHTML(body);
+                    contentType = "text/html; charset=UTF-8";
+                }
+                send(exchange, 200, contentType, response);
+                outputBytes.add(response.length);
+            } finally {
+                admission.release();
+            }
+        } finally {
+            exchange.close();
+            latencies.record(System.nanoTime() - startTime);
+        }
+    }
+
+    private void reject(HttpExchange exchange) throws IOException {
+        rejectedCount.increment();
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        sendError(exchange, 503, "Too many requests");
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                sendError(exchange, 405, "Only GET is supported");
+                return;
+            }
+            String metrics = String.format(Locale.ROOT,
+                    "requests %d\nrejected %d\ntoo_large %d\nbad_requests %d\ninput_bytes %d\noutput_bytes %d\n"
+                            + "in_flight %d\np50_us %.1f\np90_us %.1f\np99_us %.1f\nmax_us %.1f\n",
+                    requestCount.sum(), rejectedCount.sum(), tooLargeCount.sum(), badRequestCount.sum(),
+                    inputBytes.sum(), outputBytes.sum(), maxConcurrent - admission.availablePermits(),
+                    latencies.percentileMicros(0.50), latencies.percentileMicros(0.90),
+                    latencies.percentileMicros(0.99), latencies.getMaxMicros());
+            send(exchange, 200, "text/plain; charset=UTF-8", metrics.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    // the value of the max query parameter, Integer.MAX_VALUE without it and -1 when it is not a number of chars
+    private static int parseMaxLength(URI uri) {
+        String query = uri.getRawQuery();
+        if (query == null) return Integer.MAX_VALUE;
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith("max=")) {
+                try {
+                    return Math.max(-1, Integer.parseInt(parameter.substring("max=".length())));
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    // the declared length of the body, -1 when it is not known
+    private static long contentLength(HttpExchange exchange) {
+        String value = exchange.getRequestHeaders().getFirst("Content-Length");
+        if (value == null) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // null when the body is over maxRequestBytes
+    private byte[] readBody(InputStream in) throws IOException {
+        byte[] body = in.readNBytes(maxRequestBytes);
+        if (in.read() >= 0) return null;
+        return body;
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, "text/plain; charset=UTF-8", (message + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /*
+     *  A virtual thread per request on Java 21 and later. Earlier JVMs get a pool of daemon threads instead, twice
+     *  maxConcurrent so that the requests waiting for admission do not hold up the admitted ones, with a queue of
+     *  maxConcurrent requests in front of it. A request that finds the pool and its queue full is run on the server's
+     *  dispatcher thread, which answers it with 503 without reading its body.
+     */
+    private ExecutorService newRequestExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrent * 2, maxConcurrent * 2, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(maxConcurrent), task -> {
+                        Thread thread = new Thread(task, "bbcode-render");
+                        thread.setDaemon(true);
+                        return thread;
+                    }, (task, rejectingPool) -> {
+                        overflow.set(Boolean.TRUE);
+                        try {
+                            task.run();
+                        } finally {
+                            overflow.remove();
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            return pool;
+        }
+    }
+
+    /*
+     *  Serves the default parser, on the loopback interface unless another address is given.
+     */
+    public static void main(String[] args) throws IOException {
+        int port = 8080;
+        String host = null;
+        int maxConcurrent = Runtime.getRuntime().availableProcessors() * 2;
+        int maxRequestKilobytes = 1024;
+        long admissionTimeoutMillis = 100;
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            } else if (arg.startsWith("--bind=")) {
+                host = arg.substring("--bind=".length());
+            } else if (arg.startsWith("--max-concurrent=")) {
+                maxConcurrent = Integer.parseInt(arg.substring("--max-concurrent=".length()));
+            } else if (arg.startsWith("--max-request-kb=")) {
+                maxRequestKilobytes = Integer.parseInt(arg.substring("--max-request-kb=".length()));
+            } else if (arg.startsWith("--admission-timeout-ms=")) {
+                admissionTimeoutMillis = Long.parseLong(arg.substring("--admission-timeout-ms=".length()));
+            } else {
+                System.err.println("Usage: java demo.vencs.BBCodeRenderServer [--port=N] [--bind=address]"
+                        + " [--max-concurrent=N] [--max-request-kb=N] [--admission-timeout-ms=N]");
+                System.exit(2);
+            }
+        }
+
+        InetAddress bindAddress = host == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(host);
+        BBCodeRenderServer server = new BBCodeRenderServer(BBCodeParser.getInstance(),
+                new InetSocketAddress(bindAddress, port), maxConcurrent, maxRequestKilobytes << 10,
+                admissionTimeoutMillis);
+        server.start();
+        System.out.println("Rendering BBCode on http://" + bindAddress.getHostAddress() + ":"
+                + server.getAddress().getPort());
+    }
+}
@@ -0,0 +1,442 @@
+package demo.vencs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/*
+ *  A render cache kept in a memory-mapped file, so it survives restarts and is shared by the JVMs of a host, e.g.
+ *    parser.setRenderStore(BBCodeRenderStore.open(Paths.get("/var/cache/forum/bbcode-1.4.store"), 1_000_000, 1L << 30));
+ *  The posts are keyed by a SHA-256 hash of the BBCode salted with the options of the parser and the class, flags and
+ *  templates of each of its tags, see BBCodeTag#describeRendering. The salt does not cover the code of the tag
+ *  classes, so a release that changes how a tag class renders has to use a new file.
+ *
+ *  Layout, all of it in the mapping and none of it on the heap:
+ *    header    magic, format, slot count, data capacity, head and tail of the data log
+ *    index     buckets of BUCKET_SLOTS slots (key, text length, log offset of the record, referenced flag)
+ *    data      a circular log of records (magic, HTML length, key, text length, CRC-32, UTF-8 HTML)
+ *
+ *  A record is appended at the head of the log, and the space is taken from its tail. A record reached by the tail
+ *  whose slot was read since it was appended gets a second chance and is appended again, like the hand of a clock
+ *  passing a referenced page, otherwise it is dropped. A full bucket drops its oldest slot.
+ *
+ *  Writers are serialized by a lock on the file, readers take no lock. A record is written before the head is moved
+ *  past it and before its slot points to it, and the tail is moved before the space behind it is written over.
+ *  A reader checks the record against its slot and its CRC, and checks that the tail has not passed it while reading,
+ *  so a record torn by a crash or written over by another process is a miss rather than wrong HTML. A writer that
+ *  finds a torn record at the tail, or a head and tail no write could have left, drops the whole log instead.
+ *  A store is meant to be opened once per JVM and file, with the same entry count and size by all of them, a file
+ *  written with others is refused rather than started over under the JVMs that have it mapped.
+ */
+public class BBCodeRenderStore implements Closeable {
+    private static final long MAGIC = 0x4242436f64655354L;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 4096;
+    private static final int HEADER_SLOT_COUNT = 12;
+    private static final int HEADER_CAPACITY = 16;
+    private static final int HEADER_HEAD = 24;
+    private static final int HEADER_TAIL = 32;
+
+    private static final int BUCKET_SLOTS = 8;
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_KEY_HIGH = 0;
+    private static final int SLOT_KEY_LOW = 8;
+    // the log offset of the record + 1, 0 for an empty slot
+    private static final int SLOT_OFFSET = 16;
+    private static final int SLOT_TEXT_LENGTH = 24;
+    private static final int SLOT_REFERENCED = 28;
+
+    private static final int RECORD_MAGIC = 0x48544d4c;
+    // fills the end of the data region when a record does not fit in before it
+    private static final int PADDING_MAGIC = 0x50414444;
+    private static final int RECORD_HEADER_SIZE = 32;
+    private static final int RECORD_HTML_LENGTH = 4;
+    private static final int RECORD_KEY_HIGH = 8;
+    private static final int RECORD_KEY_LOW = 16;
+    private static final int RECORD_TEXT_LENGTH = 24;
+    private static final int RECORD_CRC = 28;
+    // the most records given a second chance for a single write, the ones after it are dropped
+    private static final int MAX_SECOND_CHANCES = 64;
+
+    private static final VarHandle longs = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int bucketCount;
+    private final int dataStart;
+    private final long capacity;
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private volatile boolean closed;
+
+    private BBCodeRenderStore(FileChannel channel, MappedByteBuffer map, int slotCount, long capacity) {
+        this.channel = channel;
+        this.map = map;
+        this.bucketCount = slotCount / BUCKET_SLOTS;
+        this.dataStart = HEADER_SIZE + slotCount * SLOT_SIZE;
+        this.capacity = capacity;
+    }
+
+    /*
+     *  Opens the store in the file, or creates it in a new or empty file. Throws an IOException for a file written with
+     *  another entry count or size, or not written by a store at all, which has to be deleted or given another name.
+     *  The whole file has to fit in a single mapping of at most 2 GB.
+     */
+    public static BBCodeRenderStore open(Path file, int maxEntries, long maxBytes) throws IOException {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("maxEntries and maxBytes must be positive");
+        }
+        int slotCount = BUCKET_SLOTS;
+        while (slotCount < maxEntries) {
+            slotCount <<= 1;
+        }
+        long capacity = Math.max(4096, (maxBytes + 7) & ~7L);
+        long fileSize = HEADER_SIZE + (long) slotCount * SLOT_SIZE + capacity;
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("A store of " + fileSize + " bytes does not fit in a mapping");
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            FileLock lock = channel.lock();
+            try {
+                return open(channel, file, slotCount, capacity, fileSize);
+            } finally {
+                lock.release();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static BBCodeRenderStore open(FileChannel channel, Path file, int slotCount, long capacity, long fileSize)
+            throws IOException {
+        long size = channel.size();
+        if (size != 0 && size != fileSize) {
+            throw new IOException(file + " is not a render store of " + fileSize + " bytes");
+        }
+        // an empty file grows to a mapping of zeros, that is all slots empty and the log empty
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        if (map.getLong(0) != MAGIC) {
+            // no JVM opened the file yet, the magic is written last, so it is all zeros unless it is not a store
+            for (int i = 0; i < HEADER_SIZE; i += 8) {
+                if (map.getLong(i) != 0) {
+                    throw new IOException(file + " is not a render store");
+                }
+            }
+            map.putInt(8, FORMAT);
+            map.putInt(HEADER_SLOT_COUNT, slotCount);
+            map.putLong(HEADER_CAPACITY, capacity);
+            map.putLong(HEADER_HEAD, 0);
+            map.putLong(HEADER_TAIL, 0);
+            map.force();
+            map.putLong(0, MAGIC);
+            map.force();
+        } else if (map.getInt(8) != FORMAT || map.getInt(HEADER_SLOT_COUNT) != slotCount
+                || map.getLong(HEADER_CAPACITY) != capacity) {
+            throw new IOException(file + " is a render store of another format, entry count or size");
+        }
+        return new BBCodeRenderStore(channel, map, slotCount, capacity);
+    }
+
+    /*
+     *  Returns the stored HTML of the text, or renders and stores it. The salt tells apart the parsers sharing a store.
+     */
+    String get(String text, long salt, Function<String, String> renderer) {
+        if (closed) return renderer.apply(text);
+
+        BBCodeContentKey key = BBCodeContentKey.of(text, salt);
+        String html = read(key);
+        if (html != null) {
+            hitCount.increment();
+            return html;
+        }
+        missCount.increment();
+
+        html = renderer.apply(text);
+        try {
+            write(key, html.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException | RuntimeException e) {
+            // the HTML is still rendered, it is only not stored
+        }
+        return html;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /*
+     *  The number of records this JVM dropped from the store to make room.
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /*
+     *  Writes the mapped pages to the disk, so the store survives a crash of the machine as well.
+     */
+    public void force() {
+        map.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    private String read(BBCodeContentKey key) {
+        int bucket = HEADER_SIZE + bucketOf(key) * BUCKET_SLOTS * SLOT_SIZE;
+        for (int slot = bucket; slot < bucket + BUCKET_SLOTS * SLOT_SIZE; slot += SLOT_SIZE) {
+            long offset = (long) longs.getAcquire(map, slot + SLOT_OFFSET) - 1;
+            if (offset < 0 || map.getLong(slot + SLOT_KEY_HIGH) != key.high
+                    || map.getLong(slot + SLOT_KEY_LOW) != key.low || map.getInt(slot + SLOT_TEXT_LENGTH) != key.length) {
+                continue;
+            }
+
+            String html = readRecord(offset, key);
+            if (html != null && map.get(slot + SLOT_REFERENCED) == 0) {
+                map.put(slot + SLOT_REFERENCED, (byte) 1);
+            }
+            return html;
+        }
+        return null;
+    }
+
+    // null when the record is not in the log anymore, or was torn or written over
+    private String readRecord(long offset, BBCodeContentKey key) {
+        if (offset < (long) longs.getAcquire(map, HEADER_TAIL) || offset >= (long) longs.getAcquire(map, HEADER_HEAD)) {
+            return null;
+        }
+        int position = position(offset);
+        int htmlLength = map.getInt(position + RECORD_HTML_LENGTH);
+        if (map.getInt(position) != RECORD_MAGIC || htmlLength < 0
+                || htmlLength > capacity - offset % capacity - RECORD_HEADER_SIZE
+                || map.getLong(position + RECORD_KEY_HIGH) != key.high
+                || map.getLong(position + RECORD_KEY_LOW) != key.low
+                || map.getInt(position + RECORD_TEXT_LENGTH) != key.length) {
+            return null;
+        }
+        byte[] html = new byte[htmlLength];
+        map.get(position + RECORD_HEADER_SIZE, html);
+        int crc = map.getInt(position + RECORD_CRC);
+
+        // the record was read before the tail is read again, see write
+        VarHandle.loadLoadFence();
+        if (offset < (long) longs.getAcquire(map, HEADER_TAIL) || crc != crc(html)) {
+            return null;
+        }
+        return new String(html, StandardCharsets.UTF_8);
+    }
+
+    private synchronized void write(BBCodeContentKey key, byte[] html) throws IOException {
+        if (closed || RECORD_HEADER_SIZE + (long) html.length > capacity / 4) return;
+
+        FileLock lock = channel.lock();
+        try {
+            if (!isLogValid()) {
+                reset(0);
+            }
+            ArrayDeque<Record> pending = new ArrayDeque<>();
+            pending.add(new Record(key.high, key.low, key.length, html));
+            int secondChances = 0;
+            while (!pending.isEmpty()) {
+                Record record = pending.poll();
+                int size = record.size();
+                long head = (long) longs.getAcquire(map, HEADER_HEAD);
+                long room = capacity - head % capacity;
+                if (room < size) {
+                    secondChances += makeRoom(head, room, pending, secondChances);
+                    map.putInt(position(head), PADDING_MAGIC);
+                    map.putInt(position(head) + RECORD_HTML_LENGTH, (int) room);
+                    longs.setRelease(map, HEADER_HEAD, head += room);
+                }
+                secondChances += makeRoom(head, size, pending, secondChances);
+                append(head, record);
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    // moves the tail until size more bytes fit after the head, returns the number of records given a second chance
+    private int makeRoom(long head, long size, ArrayDeque<Record> pending, int secondChances) {
+        int given = 0;
+        long tail = (long) longs.getAcquire(map, HEADER_TAIL);
+        while (head + size - tail > capacity) {
+            int position = position(tail);
+            long room = capacity - tail % capacity;
+            if (map.getInt(position) == PADDING_MAGIC && map.getInt(position + RECORD_HTML_LENGTH) == room) {
+                tail += room;
+                continue;
+            }
+            int htmlLength = map.getInt(position + RECORD_HTML_LENGTH);
+            if (map.getInt(position) != RECORD_MAGIC || htmlLength < 0 || htmlLength > room - RECORD_HEADER_SIZE
+                    || tail + Record.size(htmlLength) > head) {
+                // torn by a crash, e.g. the head reached the disk but the record did not, so the next one is not known
+                reset(head);
+                return given;
+            }
+            Record record = readRecordAt(position, htmlLength);
+            tail += record.size();
+
+            int slot = findSlot(record.high, record.low, record.length, tail - record.size());
+            if (slot < 0) continue;
+            if (map.get(slot + SLOT_REFERENCED) != 0 && secondChances + given < MAX_SECOND_CHANCES) {
+                map.put(slot + SLOT_REFERENCED, (byte) 0);
+                pending.add(record);
+                given++;
+            } else {
+                longs.setRelease(map, slot + SLOT_OFFSET, 0L);
+                evictionCount.increment();
+            }
+        }
+        longs.setVolatile(map, HEADER_TAIL, tail);
+        // nothing behind the old tail is written over before the readers can see the new one
+        VarHandle.storeStoreFence();
+        return given;
+    }
+
+    private void append(long head, Record record) {
+        int position = position(head);
+        map.putInt(position + RECORD_HTML_LENGTH, record.html.length);
+        map.putLong(position + RECORD_KEY_HIGH, record.high);
+        map.putLong(position + RECORD_KEY_LOW, record.low);
+        map.putInt(position + RECORD_TEXT_LENGTH, record.length);
+        map.putInt(position + RECORD_CRC, crc(record.html));
+        map.put(position + RECORD_HEADER_SIZE, record.html);
+        map.putInt(position, RECORD_MAGIC);
+        longs.setRelease(map, HEADER_HEAD, head + record.size());
+
+        // the slot of the same key, else an empty one, else the oldest one of the bucket
+        int bucket = HEADER_SIZE + bucketOf(record.high, record.low) * BUCKET_SLOTS * SLOT_SIZE;
+        int target = -1;
+        int oldest = bucket;
+        long oldestOffset = Long.MAX_VALUE;
+        for (int slot = bucket; slot < bucket + BUCKET_SLOTS * SLOT_SIZE; slot += SLOT_SIZE) {
+            long offset = (long) longs.getAcquire(map, slot + SLOT_OFFSET);
+            if (offset != 0 && map.getLong(slot + SLOT_KEY_HIGH) == record.high
+                    && map.getLong(slot + SLOT_KEY_LOW) == record.low
+                    && map.getInt(slot + SLOT_TEXT_LENGTH) == record.length) {
+                target = slot;
+                break;
+            }
+            if (offset < oldestOffset) {
+                oldestOffset = offset;
+                oldest = slot;
+            }
+        }
+        if (target < 0) {
+            target = oldest;
+            if (oldestOffset != 0) evictionCount.increment();
+        }
+        longs.setRelease(map, target + SLOT_OFFSET, 0L);
+        map.putLong(target + SLOT_KEY_HIGH, record.high);
+        map.putLong(target + SLOT_KEY_LOW, record.low);
+        map.putInt(target + SLOT_TEXT_LENGTH, record.length);
+        map.put(target + SLOT_REFERENCED, (byte) 0);
+        longs.setRelease(map, target + SLOT_OFFSET, head + 1);
+    }
+
+    // whether the head and the tail are ones a write could have left
+    private boolean isLogValid() {
+        long head = (long) longs.getAcquire(map, HEADER_HEAD);
+        long tail = (long) longs.getAcquire(map, HEADER_TAIL);
+        return tail >= 0 && head >= tail && head - tail <= capacity && head % 8 == 0 && tail % 8 == 0;
+    }
+
+    /*
+     *  Drops every record by moving the head and the tail to start and emptying the slots. A reader that took a slot
+     *  before it was emptied finds the record outside of the log, or fails the checks of the record at its offset.
+     */
+    private void reset(long start) {
+        longs.setVolatile(map, HEADER_HEAD, start);
+        longs.setVolatile(map, HEADER_TAIL, start);
+        for (int slot = HEADER_SIZE; slot < dataStart; slot += SLOT_SIZE) {
+            if ((long) longs.getAcquire(map, slot + SLOT_OFFSET) != 0) {
+                longs.setRelease(map, slot + SLOT_OFFSET, 0L);
+                evictionCount.increment();
+            }
+        }
+    }
+
+    private Record readRecordAt(int position, int htmlLength) {
+        byte[] html = new byte[htmlLength];
+        map.get(position + RECORD_HEADER_SIZE, html);
+        return new Record(map.getLong(position + RECORD_KEY_HIGH), map.getLong(position + RECORD_KEY_LOW),
+                map.getInt(position + RECORD_TEXT_LENGTH), html);
+    }
+
+    // the slot pointing to the record at offset, -1 when there is none
+    private int findSlot(long high, long low, int length, long offset) {
+        int bucket = HEADER_SIZE + bucketOf(high, low) * BUCKET_SLOTS * SLOT_SIZE;
+        for (int slot = bucket; slot < bucket + BUCKET_SLOTS * SLOT_SIZE; slot += SLOT_SIZE) {
+            if ((long) longs.getAcquire(map, slot + SLOT_OFFSET) == offset + 1 && map.getLong(slot + SLOT_KEY_HIGH) == high
+                    && map.getLong(slot + SLOT_KEY_LOW) == low && map.getInt(slot + SLOT_TEXT_LENGTH) == length) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private int bucketOf(BBCodeContentKey key) {
+        return bucketOf(key.high, key.low);
+    }
+
+    private int bucketOf(long high, long low) {
+        return (int) (low & (bucketCount - 1));
+    }
+
+    private int position(long offset) {
+        return dataStart + (int) (offset % capacity);
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static class Record {
+        private final long high;
+        private final long low;
+        private final int length;
+        private final byte[] html;
+
+        private Record(long high, long low, int length, byte[] html) {
+            this.high = high;
+            this.low = low;
+            this.length = length;
+            this.html = html;
+        }
+
+        private int size() {
+            return size(html.length);
+        }
+
+        // aligned to 8 bytes, so the longs of the next record are aligned as well
+        private static int size(int htmlLength) {
+            return (RECORD_HEADER_SIZE + htmlLength + 7) & ~7;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package demo.vencs;
+
+/*
+ *  A tag definition, rendered as <tagName> unless it is given other templates, e.g.
+ *    tag.setOpenTemplate("<span style=\"color:{param}\">");
+ *    tag.setEndTemplate("</span>");
+ *  where {param} is the param as formatParam returns it and {content} the content of a content dependent tag.
+ *  The templates are compiled once and copied straight into the HTML, a tag whose templates have no slots renders
+ *  without building any string. A tag that overrides getOpenTag or getEndTag is rendered through its override instead.
+ *  Tag names are lowercase and may only have a-z, 0-9 and *. A tag is frozen once a parser is built with it,
+ *  its flags and templates cannot be changed afterwards.
+ */
+public class BBCodeTag {
+    private final String tagName;
+    private boolean noParse = false;
+    private boolean displayContent = true;
+    private boolean contentDependent = false;
+    private boolean frozen = false;
+
+    private BBCodeTemplate openTemplate;
+    // used instead of openTemplate for an empty param when set
+    private BBCodeTemplate openTemplateWithoutParam;
+    private BBCodeTemplate endTemplate;
+    // set when frozen, false when the tag is rendered through its overrides
+    private boolean templatedOpenTag;
+    private boolean templatedEndTag;
+
+    public BBCodeTag(String tagName) {
+        this.tagName = tagName;
+        openTemplate = BBCodeTemplate.compile("<" + tagName + ">");
+        endTemplate = BBCodeTemplate.compile("</" + tagName + ">");
+    }
+
+    public String getOpenTag(String param, String content) {
+        BBCodeTemplate template = openTemplate(param);
+        return template.render(template.hasParam() ? formatParam(param) : param, content);
+    }
+
+    public String getEndTag(String param, String content) {
+        return endTemplate.render(endTemplate.hasParam() ? formatParam(param) : param, content);
+    }
+
+    /*
+     *  The value of the {param} slots, e.g. the param checked and normalized. Only called for templates with such a slot.
+     */
+    protected String formatParam(String param) {
+        return param;
+    }
+
+    public void setOpenTemplate(String template) {
+        checkNotFrozen();
+        openTemplate = BBCodeTemplate.compile(template);
+    }
+
+    /*
+     *  The open tag for an empty param, e.g. "<ol>" next to "<ol style=\"list-style-type:{param}\">".
+     */
+    public void setOpenTemplateWithoutParam(String template) {
+        checkNotFrozen();
+        openTemplateWithoutParam = BBCodeTemplate.compile(template);
+    }
+
+    public void setEndTemplate(String template) {
+        checkNotFrozen();
+        endTemplate = BBCodeTemplate.compile(template);
+    }
+
+    /*
+     *  Appends the open tag to html and returns the number of chars appended.
+     */
+    int writeOpenTag(String param, String content, StringBuilder html) {
+        if (!templatedOpenTag) return append(html, getOpenTag(param, content));
+        int start = html.length();
+        BBCodeTemplate template = openTemplate(param);
+        template.write(html, template.hasParam() ? formatParam(param) : param, content);
+        return html.length() - start;
+    }
+
+    int writeEndTag(String param, String content, StringBuilder html) {
+        if (!templatedEndTag) return append(html, getEndTag(param, content));
+        int start = html.length();
+        endTemplate.write(html, endTemplate.hasParam() ? formatParam(param) : param, content);
+        return html.length() - start;
+    }
+
+    // the UTF-8 variants return the number of bytes written
+    int writeOpenTag(String param, String content, BBCodeUTF8Buffer html) {
+        int start = html.length();
+        if (!templatedOpenTag) {
+            html.write(getOpenTag(param, content));
+        } else {
+            BBCodeTemplate template = openTemplate(param);
+            template.write(html, template.hasParam() ? formatParam(param) : param, content);
+        }
+        return html.length() - start;
+    }
+
+    int writeEndTag(String param, String content, BBCodeUTF8Buffer html) {
+        int start = html.length();
+        if (!templatedEndTag) {
+            html.write(getEndTag(param, content));
+        } else {
+            endTemplate.write(html, endTemplate.hasParam() ? formatParam(param) : param, content);
+        }
+        return html.length() - start;
+    }
+
+    private BBCodeTemplate openTemplate(String param) {
+        return param.isEmpty() && openTemplateWithoutParam != null ? openTemplateWithoutParam : openTemplate;
+    }
+
+    private static int append(StringBuilder html, String s) {
+        html.append(s);
+        return s.length();
+    }
+
+    public String getTagName() {
+        return tagName;
+    }
+
+    public boolean isNoParse() {
+        return noParse;
+    }
+
+    public void setNoParse(boolean noParse) {
+        checkNotFrozen();
+        this.noParse = noParse;
+    }
+
+    public boolean isDisplayContent() {
+        return displayContent;
+    }
+
+    public void setDisplayContent(boolean displayContent) {
+        checkNotFrozen();
+        this.displayContent = displayContent;
+    }
+
+    /*
+     *  A tag which builds its open or end tag from the content has to be marked as content dependent,
+     *  the rendered content is only passed to such tags, all other tags receive an empty content.
+     */
+    public boolean isContentDependent() {
+        return contentDependent;
+    }
+
+    public void setContentDependent(boolean contentDependent) {
+        checkNotFrozen();
+        this.contentDependent = contentDependent;
+    }
+
+    /*
+     *  Everything the HTML of the tag depends on that is known without running it: the class, for the code of its
+     *  overrides, the flags and the templates. Parsers whose tags describe alike render alike, see BBCodeRenderStore.
+     */
+    String describeRendering() {
+        return getClass().getName() + ':' + tagName + ':' + noParse + ':' + displayContent + ':' + contentDependent
+                + ':' + describe(openTemplate) + ':' + describe(openTemplateWithoutParam) + ':' + describe(endTemplate);
+    }
+
+    private static String describe(BBCodeTemplate template) {
+        // the length keeps templates holding the separator apart
+        return template == null ? "-" : template.getSource().length() + "=" + template.getSource();
+    }
+
+    void freeze() {
+        if (frozen) return;
+        templatedOpenTag = !overrides("getOpenTag");
+        templatedEndTag = !overrides("getEndTag");
+        frozen = true;
+    }
+
+    private boolean overrides(String methodName) {
+        try {
+            return getClass().getMethod(methodName, String.class, String.class).getDeclaringClass() != BBCodeTag.class;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("Tag [" + tagName + "] is already used by a parser");
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package demo.vencs;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ *  The immutable tag set of a parser. Tag names are resolved through a case-insensitive trie over the chars a tag name
+ *  may have, so looking up a name in the text needs no lowercased copy of it.
+ *  The tags are frozen when they are registered, so the registry cannot be changed through them either.
+ */
+class BBCodeTagRegistry {
+    private static final int ALPHABET_SIZE = 37;
+
+    private final List<BBCodeTag> tags;
+    private final int maxNameLength;
+
+    // transitions[node * ALPHABET_SIZE + symbol] is the next node, 0 when there is none since the root is never a target
+    private final int[] transitions;
+    private final BBCodeTag[] nodeTags;
+
+    BBCodeTagRegistry(Collection<BBCodeTag> tags) {
+        List<BBCodeTag> sortedTags = new ArrayList<>(tags);
+        sortedTags.sort(Comparator.comparing(BBCodeTag::getTagName));
+        this.tags = Collections.unmodifiableList(sortedTags);
+
+        int nodeCount = 1, maxNameLength = 0;
+        String previousName = null;
+        for (BBCodeTag tag : sortedTags) {
+            String tagName = tag.getTagName();
+            if (tagName.isEmpty()) throw new IllegalArgumentException("Empty tag name");
+            for (int i = 0; i < tagName.length(); i++) {
+                char c = tagName.charAt(i);
+                if (symbol(c) < 0 || Character.isUpperCase(c)) {
+                    throw new IllegalArgumentException("Tag names may only have a-z, 0-9 and *: " + tagName);
+                }
+            }
+            // sorted, so a duplicate follows the tag of the same name
+            if (tagName.equals(previousName)) {
+                throw new IllegalArgumentException("Duplicate tag name: " + tagName);
+            }
+            previousName = tagName;
+            nodeCount += tagName.length();
+            maxNameLength = Math.max(maxNameLength, tagName.length());
+        }
+        this.maxNameLength = maxNameLength;
+
+        transitions = new int[nodeCount * ALPHABET_SIZE];
+        nodeTags = new BBCodeTag[nodeCount];
+        int nextNode = 1;
+        for (BBCodeTag tag : sortedTags) {
+            String tagName = tag.getTagName();
+            int node = 0;
+            for (int i = 0; i < tagName.length(); i++) {
+                int index = node * ALPHABET_SIZE + symbol(tagName.charAt(i));
+                if (transitions[index] == 0) {
+                    transitions[index] = nextNode++;
+                }
+                node = transitions[index];
+            }
+            nodeTags[node] = tag;
+            tag.freeze();
+        }
+    }
+
+    /*
+     *  Returns the tag named by text[start, end) in any case, or null.
+     */
+    BBCodeTag lookup(CharSequence text, int start, int end) {
+        if (end - start > maxNameLength) return null;
+
+        int node = 0;
+        for (int i = start; i < end; i++) {
+            int symbol = symbol(text.charAt(i));
+            if (symbol < 0) return null;
+            node = transitions[node * ALPHABET_SIZE + symbol];
+            if (node == 0) return null;
+        }
+        return nodeTags[node];
+    }
+
+    /*
+     *  The tags in the order of their names.
+     */
+    List<BBCodeTag> getTags() {
+        return tags;
+    }
+
+    int getMaxNameLength() {
+        return maxNameLength;
+    }
+
+    private static int symbol(char c) {
+        if (c >= 'a' && c <= 'z') return c - 'a';
+        if (c >= 'A' && c <= 'Z') return c - 'A';
+        if (c >= '0' && c <= '9') return 26 + c - '0';
+        if (c == '*') return 36;
+        return -1;
+    }
+}
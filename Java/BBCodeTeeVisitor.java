@@ -0,0 +1,34 @@
+package demo.vencs;
+
+/*
+ *  Passes the events of a post on to several visitors, so a single parse and walk feeds all of them.
+ *  The visitors get every event in the order they are given, a visitor that throws ends the walk for all of them.
+ */
+class BBCodeTeeVisitor implements BBCodeVisitor {
+    private final BBCodeVisitor[] visitors;
+
+    BBCodeTeeVisitor(BBCodeVisitor... visitors) {
+        this.visitors = visitors;
+    }
+
+    @Override
+    public void text(CharSequence source, int start, int end) {
+        for (BBCodeVisitor visitor : visitors) {
+            visitor.text(source, start, end);
+        }
+    }
+
+    @Override
+    public void openElement(BBCodeTag tag, String param) {
+        for (BBCodeVisitor visitor : visitors) {
+            visitor.openElement(tag, param);
+        }
+    }
+
+    @Override
+    public void closeElement() {
+        for (BBCodeVisitor visitor : visitors) {
+            visitor.closeElement();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package demo.vencs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *  An open or end tag template of a BBCodeTag, compiled once into its constant fragments, as chars and as UTF-8 bytes,
+ *  and the slots between them. {param} is replaced by the formatted param and {content} by the content, everything
+ *  else is copied as it is. A template without slots is a single constant copy.
+ */
+class BBCodeTemplate {
+    private static final String PARAM_SLOT = "{param}";
+    private static final String CONTENT_SLOT = "{content}";
+
+    // fragments[i] comes before slot i, the last fragment ends the template
+    private final char[][] fragments;
+    private final byte[][] utf8Fragments;
+    private final boolean[] paramSlots;
+    private final boolean hasParam;
+    private final int constantLength;
+    private final String source;
+
+    private BBCodeTemplate(String source, List<String> fragments, List<Boolean> paramSlots) {
+        this.source = source;
+        this.fragments = new char[fragments.size()][];
+        this.utf8Fragments = new byte[fragments.size()][];
+        int constantLength = 0;
+        for (int i = 0; i < fragments.size(); i++) {
+            this.fragments[i] = fragments.get(i).toCharArray();
+            this.utf8Fragments[i] = fragments.get(i).getBytes(StandardCharsets.UTF_8);
+            constantLength += this.fragments[i].length;
+        }
+        this.constantLength = constantLength;
+
+        this.paramSlots = new boolean[paramSlots.size()];
+        boolean hasParam = false;
+        for (int i = 0; i < paramSlots.size(); i++) {
+            this.paramSlots[i] = paramSlots.get(i);
+            hasParam |= this.paramSlots[i];
+        }
+        this.hasParam = hasParam;
+    }
+
+    static BBCodeTemplate compile(String template) {
+        List<String> fragments = new ArrayList<>();
+        List<Boolean> paramSlots = new ArrayList<>();
+        int fragmentStart = 0;
+        int i = template.indexOf('{');
+        while (i >= 0) {
+            if (template.startsWith(PARAM_SLOT, i) || template.startsWith(CONTENT_SLOT, i)) {
+                boolean param = template.startsWith(PARAM_SLOT, i);
+                fragments.add(template.substring(fragmentStart, i));
+                paramSlots.add(param);
+                fragmentStart = i + (param ? PARAM_SLOT : CONTENT_SLOT).length();
+                i = template.indexOf('{', fragmentStart);
+            } else {
+                i = template.indexOf('{', i + 1);
+            }
+        }
+        fragments.add(template.substring(fragmentStart));
+        return new BBCodeTemplate(template, fragments, paramSlots);
+    }
+
+    String getSource() {
+        return source;
+    }
+
+    // false when the template can be written without formatting the param
+    boolean hasParam() {
+        return hasParam;
+    }
+
+    void write(StringBuilder out, String param, String content) {
+        out.append(fragments[0]);
+        for (int i = 0; i < paramSlots.length; i++) {
+            out.append(paramSlots[i] ? param : content).append(fragments[i + 1]);
+        }
+    }
+
+    void write(BBCodeUTF8Buffer out, String param, String content) {
+        out.write(utf8Fragments[0]);
+        for (int i = 0; i < paramSlots.length; i++) {
+            out.write(paramSlots[i] ? param : content);
+            out.write(utf8Fragments[i + 1]);
+        }
+    }
+
+    String render(String param, String content) {
+        StringBuilder sb = new StringBuilder(constantLength + (paramSlots.length == 0 ? 0 : 32));
+        write(sb, param, content);
+        return sb.toString();
+    }
+}
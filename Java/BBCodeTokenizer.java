@@ -0,0 +1,306 @@
+package demo.vencs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.CharBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+ * Splits BBCode text into text runs, open tags and close tags in a single left-to-right scan.
+ * Only tag names found in the tag registry are recognized, any other bracketed text is returned as part of a text run.
+ * Every search that may look ahead (the ']' of a tag parameter, the closing tag of a noParse tag) remembers its
+ * result, so the whole input is scanned in linear time even when brackets are never closed.
+ *
+ * When the text comes from a Reader it is read in chunks into a buffer, which is compacted by the caller once the
+ * consumed part of it is no longer referenced.
+ */
+class BBCodeTokenizer {
+    static final int EOF = 0;
+    static final int TEXT = 1;
+    static final int OPEN = 2;
+    static final int CLOSE = 3;
+
+    private static final int CHUNK_SIZE = 8192;
+
+    private final CharSequence text;
+    private final StringBuilder buffer;
+    private final Reader reader;
+    private final char[] chunk;
+    private final BBCodeTagRegistry registry;
+    private final int maxNameLength;
+    private int length;
+    private int pos;
+    // the highest position looked at so far, the length of the text once its end has been seen
+    private int horizon;
+
+    private int type;
+    private int start;
+    private int end;
+    private BBCodeTag tag;
+    private String param;
+
+    // tag matched ahead of the current text run, returned by the next call
+    private int pendingStart = -1;
+    private int pendingType;
+    private int pendingEnd;
+    private BBCodeTag pendingTag;
+    private String pendingParam;
+
+    private int nextBracket = -1;
+    private boolean bracketMissing;
+    private final Set<String> rawEndMissing = new HashSet<>();
+
+    BBCodeTokenizer(CharSequence text, BBCodeTagRegistry registry) {
+        this(text, null, null, registry);
+        this.length = text.length();
+    }
+
+    BBCodeTokenizer(Reader reader, BBCodeTagRegistry registry) {
+        this(null, new StringBuilder(CHUNK_SIZE), reader, registry);
+    }
+
+    private BBCodeTokenizer(CharSequence text, StringBuilder buffer, Reader reader, BBCodeTagRegistry registry) {
+        this.text = buffer == null ? text : buffer;
+        this.buffer = buffer;
+        this.reader = reader;
+        this.chunk = reader == null ? null : new char[CHUNK_SIZE];
+        this.registry = registry;
+        this.maxNameLength = registry.getMaxNameLength();
+    }
+
+    int next() {
+        return next(Integer.MAX_VALUE);
+    }
+
+    /*
+     *  Returns the next token, a text run is cut after maxTextLength chars and continued by the next call.
+     */
+    int next(int maxTextLength) {
+        if (pendingStart >= 0) {
+            type = pendingType;
+            start = pendingStart;
+            end = pendingEnd;
+            tag = pendingTag;
+            param = pendingParam;
+            pendingStart = -1;
+            pos = end;
+            return type;
+        }
+
+        tag = null;
+        param = null;
+        start = pos;
+        if (!available(pos)) {
+            end = pos;
+            return type = EOF;
+        }
+
+        int limit = start + Math.max(1, maxTextLength);
+        for (int i = pos; i < length; i++) {
+            if (i == limit) {
+                end = pos = i;
+                horizon = Math.max(horizon, i - 1);
+                return type = TEXT;
+            }
+            if (text.charAt(i) == '[' && matchTag(i)) {
+                if (i == start) {
+                    return next(maxTextLength);
+                }
+                end = pos = i;
+                return type = TEXT;
+            }
+        }
+        end = pos = length;
+        horizon = Math.max(horizon, length);
+        return type = TEXT;
+    }
+
+    /*
+     *  Starts tokenizing at the given position, which must be the start of a top-level node, instead of the beginning.
+     */
+    void startAt(int position) {
+        pos = position;
+        horizon = position;
+    }
+
+    /*
+     *  The tokens returned so far depend on text[0, horizon], and on where the text ends when horizon is its length.
+     */
+    int getHorizon() {
+        return horizon;
+    }
+
+    boolean isAtEnd() {
+        return pendingStart < 0 && !available(pos);
+    }
+
+    /*
+     *  Writes text[from, ...) and whatever is left in the reader to out as it is, without tokenizing it.
+     */
+    void transferRest(int from, Appendable out) throws IOException {
+        out.append(text, from, length);
+        if (reader == null) return;
+
+        int count;
+        while ((count = reader.read(chunk)) >= 0) {
+            out.append(CharBuffer.wrap(chunk, 0, count));
+        }
+    }
+
+    /*
+     *  Consumes the content of a noParse tag up to its closing tag, the content is left as it is written.
+     *  Returns the end of the content, or -1 when the tag is never closed and the content has to be tokenized normally.
+     */
+    int readRawContent(BBCodeTag rawTag) {
+        String tagName = rawTag.getTagName();
+        if (rawEndMissing.contains(tagName)) return -1;
+
+        for (int i = pos; available(i + tagName.length() + 2); i++) {
+            if (text.charAt(i) == '[' && text.charAt(i + 1) == '/' && text.charAt(i + tagName.length() + 2) == ']'
+                    && regionMatchesIgnoreCase(i + 2, tagName)) {
+                int contentEnd = i;
+                pos = i + tagName.length() + 3;
+                return contentEnd;
+            }
+        }
+        // the scan has reached the end of the text, so no later tag of this name can be closed either
+        rawEndMissing.add(tagName);
+        return -1;
+    }
+
+    /*
+     *  Drops the consumed part of the buffer. The positions of the nodes created so far are no longer valid
+     *  afterwards, so it may only be called when all of them have been rendered.
+     */
+    void compact() {
+        if (buffer == null || pos < CHUNK_SIZE) return;
+
+        int shift = pos;
+        buffer.delete(0, shift);
+        length -= shift;
+        pos = 0;
+        start = end = 0;
+        horizon = Math.max(0, horizon - shift);
+        if (pendingStart >= 0) {
+            pendingStart -= shift;
+            pendingEnd -= shift;
+        }
+        nextBracket = nextBracket >= shift ? nextBracket - shift : -1;
+    }
+
+    private boolean matchTag(int bracket) {
+        int i = bracket + 1;
+        boolean closing = available(i) && text.charAt(i) == '/';
+        if (closing) i++;
+
+        int nameStart = i;
+        while (available(i) && i - nameStart <= maxNameLength && isNameChar(text.charAt(i))) {
+            i++;
+        }
+        if (i == nameStart || i - nameStart > maxNameLength || !available(i)) return false;
+
+        BBCodeTag matchedTag = registry.lookup(text, nameStart, i);
+        if (matchedTag == null) return false;
+
+        char c = text.charAt(i);
+        String matchedParam = "";
+        if (closing) {
+            if (c != ']') return false;
+        } else if (c == ' ' || c == '=') {
+            int close = findBracket(i);
+            if (close < 0) return false;
+            matchedParam = text.subSequence(i + 1, close).toString().trim();
+            i = close;
+        } else if (c != ']') {
+            return false;
+        }
+
+        pendingStart = bracket;
+        pendingEnd = i + 1;
+        pendingType = closing ? CLOSE : OPEN;
+        pendingTag = matchedTag;
+        pendingParam = matchedParam;
+        return true;
+    }
+
+    private int findBracket(int from) {
+        if (bracketMissing) return -1;
+        if (nextBracket >= from) return nextBracket;
+
+        int i = from;
+        while (available(i) && text.charAt(i) != ']') {
+            i++;
+        }
+        if (!available(i)) {
+            bracketMissing = true;
+            return -1;
+        }
+        return nextBracket = i;
+    }
+
+    private boolean available(int index) {
+        while (index >= length) {
+            if (!fill()) {
+                horizon = Math.max(horizon, length);
+                return false;
+            }
+        }
+        horizon = Math.max(horizon, index);
+        return true;
+    }
+
+    private boolean fill() {
+        if (reader == null) return false;
+
+        try {
+            int count = reader.read(chunk);
+            if (count < 0) return false;
+            buffer.append(chunk, 0, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        length = buffer.length();
+        return true;
+    }
+
+    private boolean regionMatchesIgnoreCase(int offset, String tagName) {
+        for (int i = 0; i < tagName.length(); i++) {
+            if (Character.toLowerCase(text.charAt(offset + i)) != tagName.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private static boolean isNameChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '*';
+    }
+
+    CharSequence getText() {
+        return text;
+    }
+
+    int getType() {
+        return type;
+    }
+
+    int getStart() {
+        return start;
+    }
+
+    int getEnd() {
+        return end;
+    }
+
+    int getPosition() {
+        return pos;
+    }
+
+    BBCodeTag getTag() {
+        return tag;
+    }
+
+    String getParam() {
+        return param;
+    }
+}
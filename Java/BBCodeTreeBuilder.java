@@ -0,0 +1,342 @@
+package demo.vencs;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/*
+ *  Builds the BBCode tree from the tokens of a BBCodeTokenizer in one pass.
+ *  A close tag closes the nearest open element of the same tag, the elements opened after it are never closed and are
+ *  written back as plain text. A close tag without a matching open element is plain text as well.
+ */
+class BBCodeTreeBuilder {
+    private final BBCodeTokenizer tokenizer;
+    private final CharSequence text;
+    private final List<BBCodeNode> roots = new ArrayList<>();
+    private final List<BBCodeNode> openElements = new ArrayList<>();
+    private final Map<BBCodeTag, int[]> openCounts = new HashMap<>();
+    private Consumer<BBCodeNode> rootConsumer;
+    private BBCodeNode handedRoot;
+    private int textLimit = Integer.MAX_VALUE;
+    private boolean visibleTextLimit;
+    // the number of open elements that do not display their content, counted for a visible text limit only
+    private int hiddenDepth;
+    private int maxDepth = Integer.MAX_VALUE;
+    private int maxTags = Integer.MAX_VALUE;
+    private int tagCount;
+    private int textLength;
+    // the text limit was reached before the end of the text, isTruncated tells whether displayed text was cut off
+    private boolean cut;
+    private Boolean truncated;
+    // the tags of the elements still open when the text limit was reached, whose closing tags are not displayed
+    private List<BBCodeTag> cutTags;
+    private boolean stopped;
+
+    BBCodeTreeBuilder(CharSequence text, BBCodeTagRegistry registry) {
+        this.tokenizer = new BBCodeTokenizer(text, registry);
+        this.text = tokenizer.getText();
+    }
+
+    BBCodeTreeBuilder(Reader reader, BBCodeTagRegistry registry) {
+        this.tokenizer = new BBCodeTokenizer(reader, registry);
+        this.text = tokenizer.getText();
+    }
+
+    List<BBCodeNode> build() {
+        int type;
+        while (!stopped && textLength < textLimit
+                && (type = tokenizer.next(hiddenDepth > 0 ? Integer.MAX_VALUE : textLimit - textLength))
+                        != BBCodeTokenizer.EOF) {
+            if (type == BBCodeTokenizer.OPEN) {
+                openTag(tokenizer.getTag(), tokenizer.getParam(), tokenizer.getStart(), tokenizer.getEnd());
+            } else if (type == BBCodeTokenizer.CLOSE) {
+                closeTag(tokenizer.getTag(), tokenizer.getStart(), tokenizer.getEnd());
+            } else {
+                append(BBCodeNode.text(text, tokenizer.getStart(), tokenizer.getEnd()));
+            }
+
+            if (rootConsumer != null && openElements.isEmpty()) {
+                tokenizer.compact();
+            }
+        }
+        cut = textLength >= textLimit && !tokenizer.isAtEnd();
+        if (cut) {
+            cutTags = new ArrayList<>();
+            for (BBCodeNode element : openElements) {
+                cutTags.add(element.getTag());
+            }
+        }
+        while (!openElements.isEmpty()) {
+            pop(cut, tokenizer.getPosition());
+        }
+        return roots;
+    }
+
+    /*
+     *  Hands every top-level node to the consumer as soon as it is complete instead of collecting the tree,
+     *  so only the top-level node being built is held in memory. The consumer must be done with a node when it returns.
+     */
+    void build(Consumer<BBCodeNode> rootConsumer) {
+        this.rootConsumer = rootConsumer;
+        build();
+    }
+
+    /*
+     *  Stops tokenizing once the text nodes hold the given number of chars. The elements still open at that point
+     *  are taken as closed, since their closing tags are cut off rather than missing.
+     */
+    void setTextLimit(int textLimit) {
+        this.textLimit = textLimit;
+    }
+
+    /*
+     *  Like setTextLimit, but only the text that is displayed counts, the content of an element that does not display
+     *  it, e.g. the URL of an image, is neither counted nor cut.
+     */
+    void setVisibleTextLimit(int textLimit) {
+        this.textLimit = textLimit;
+        visibleTextLimit = true;
+    }
+
+    /*
+     *  After a build with a text limit, whether text that is displayed was left out, not merely tags or empty elements.
+     *  Reads on over the tags after the limit, up to the next displayed text.
+     */
+    boolean isTruncated() {
+        if (truncated == null) {
+            truncated = cut && hasMoreDisplayedText();
+        }
+        return truncated;
+    }
+
+    /*
+     *  Makes the build fail with a BBCodeLimitExceededException at the first element nested deeper than maxDepth,
+     *  or at the element after the first maxTags elements.
+     */
+    void setLimits(int maxDepth, int maxTags) {
+        this.maxDepth = maxDepth;
+        this.maxTags = maxTags;
+    }
+
+    /*
+     *  Makes a streaming build return after the node the consumer is handed, e.g. once the rest of the text is known.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /*
+     *  Builds from the given position instead of the beginning, see BBCodeTokenizer#startAt.
+     */
+    void startAt(int position) {
+        tokenizer.startAt(position);
+    }
+
+    /*
+     *  The number of elements opened so far, noParse elements included.
+     */
+    int getElementCount() {
+        return tagCount;
+    }
+
+    int getHorizon() {
+        return tokenizer.getHorizon();
+    }
+
+    /*
+     *  After a failed streaming build, the start of the part of the text not handed to the consumer yet.
+     */
+    int getUnfinishedStart() {
+        if (handedRoot != null) return handedRoot.getStart();
+        return openElements.isEmpty() ? tokenizer.getStart() : openElements.get(0).getStart();
+    }
+
+    /*
+     *  After a failed streaming build, writes the part of the text not handed to the consumer yet as it is.
+     */
+    void transferRest(Appendable out) throws IOException {
+        tokenizer.transferRest(getUnfinishedStart(), out);
+    }
+
+    private void openTag(BBCodeTag tag, String param, int start, int end) {
+        if (tag.isNoParse()) {
+            checkLimits();
+            int contentEnd = tokenizer.readRawContent(tag);
+            if (contentEnd < 0) {
+                append(BBCodeNode.text(text, start, end));
+                return;
+            }
+            BBCodeNode element = BBCodeNode.element(tag, param, text, start, end);
+            if (contentEnd > end) {
+                element.getChildren().add(BBCodeNode.text(text, end, contentEnd));
+                if (hiddenDepth == 0 && (!visibleTextLimit || tag.isDisplayContent())) {
+                    textLength += contentEnd - end;
+                }
+            }
+            element.setClosed(true);
+            element.setOuterEnd(tokenizer.getPosition());
+            append(element);
+            return;
+        }
+
+        // [*] closes the previous list item, see BBCodeParser#initTags
+        if (isStarTag(tag) && isOpenListItem(openElements.size() - 1)) {
+            pop(true, start);
+        }
+        checkLimits();
+
+        BBCodeNode element = BBCodeNode.element(tag, param, text, start, end);
+        // a top-level element is handed to the consumer once it is complete
+        if (rootConsumer == null || !openElements.isEmpty()) {
+            append(element);
+        }
+        openElements.add(element);
+        openCount(tag)[0]++;
+        if (visibleTextLimit && (hiddenDepth > 0 || !tag.isDisplayContent())) {
+            hiddenDepth++;
+        }
+    }
+
+    /*
+     *  Follows the tags after the text limit without building them, starting with the elements taken as closed there,
+     *  up to the first text the whole post displays: text outside of hidden elements, and the tags written back as text,
+     *  that is closing tags without an open element and elements that are never closed.
+     */
+    private boolean hasMoreDisplayedText() {
+        List<BBCodeTag> tags = new ArrayList<>(cutTags);
+        // the number of hidden elements around each element, one that is never closed is displayed when it is 0
+        List<Integer> hiddenAround = new ArrayList<>(Collections.nCopies(cutTags.size(), 0));
+        // the number of elements of each tag in tags, so that a closing tag without one is found without a search
+        Map<BBCodeTag, int[]> tagCounts = new HashMap<>();
+        for (BBCodeTag tag : cutTags) {
+            tagCounts.computeIfAbsent(tag, key -> new int[1])[0]++;
+        }
+        int hiddenTags = 0;
+        int type;
+        while ((type = tokenizer.next()) != BBCodeTokenizer.EOF) {
+            BBCodeTag tag = tokenizer.getTag();
+            if (type == BBCodeTokenizer.TEXT) {
+                if (hiddenTags == 0 && tokenizer.getEnd() > tokenizer.getStart()) return true;
+            } else if (type == BBCodeTokenizer.OPEN && tag.isNoParse()) {
+                int end = tokenizer.getEnd();
+                int contentEnd = tokenizer.readRawContent(tag);
+                // a noParse tag that is never closed is displayed as text
+                if (hiddenTags == 0 && (contentEnd < 0 || (contentEnd > end && !hides(tag)))) return true;
+            } else if (type == BBCodeTokenizer.OPEN) {
+                // [*] closes the previous list item
+                int last = tags.size() - 1;
+                if (isStarTag(tag) && last > 0 && isStarTag(tags.get(last)) && isListTag(tags.get(last - 1))) {
+                    tagCounts.get(tags.remove(last))[0]--;
+                    hiddenAround.remove(last);
+                }
+                tags.add(tag);
+                tagCounts.computeIfAbsent(tag, key -> new int[1])[0]++;
+                hiddenAround.add(hiddenTags);
+                if (hides(tag)) hiddenTags++;
+            } else {
+                int[] count = tagCounts.get(tag);
+                if (count == null || count[0] == 0) {
+                    // a closing tag without an open element
+                    if (hiddenTags == 0) return true;
+                    continue;
+                }
+                int index = tags.lastIndexOf(tag);
+                for (int i = index + 1; i < tags.size(); i++) {
+                    // the elements opened after the closed one are never closed, except the items of a list
+                    boolean listItem = i == index + 1 && isStarTag(tags.get(i)) && isListTag(tag);
+                    if (hiddenAround.get(i) == 0 && !listItem) return true;
+                }
+                hiddenTags = hiddenAround.get(index);
+                for (BBCodeTag closed : tags.subList(index, tags.size())) {
+                    tagCounts.get(closed)[0]--;
+                }
+                tags.subList(index, tags.size()).clear();
+                hiddenAround.subList(index, hiddenAround.size()).clear();
+            }
+        }
+        return hiddenAround.contains(0);
+    }
+
+    private boolean isListTag(BBCodeTag tag) {
+        return "list".equals(tag.getTagName());
+    }
+
+    private boolean hides(BBCodeTag tag) {
+        return visibleTextLimit && !tag.isDisplayContent();
+    }
+
+    private void checkLimits() {
+        if (openElements.size() >= maxDepth) {
+            throw new BBCodeLimitExceededException("Elements nested deeper than " + maxDepth);
+        }
+        if (++tagCount > maxTags) {
+            throw new BBCodeLimitExceededException("More than " + maxTags + " elements");
+        }
+    }
+
+    private void closeTag(BBCodeTag tag, int start, int end) {
+        if (openCount(tag)[0] == 0) {
+            append(BBCodeNode.text(text, start, end));
+            return;
+        }
+
+        int index;
+        while (openElements.get(index = openElements.size() - 1).getTag() != tag) {
+            // the items of a list are closed together with the list
+            boolean listItem = isOpenListItem(index) && openElements.get(index - 1).getTag() == tag;
+            pop(listItem, start);
+        }
+        pop(true, end);
+    }
+
+    private boolean isOpenListItem(int index) {
+        return index > 0 && isStarTag(openElements.get(index).getTag())
+                && "list".equals(openElements.get(index - 1).getTag().getTagName());
+    }
+
+    private boolean isStarTag(BBCodeTag tag) {
+        return "*".equals(tag.getTagName());
+    }
+
+    private void append(BBCodeNode node) {
+        if (node.isText() && hiddenDepth == 0) {
+            textLength += node.getEnd() - node.getStart();
+        }
+        if (!openElements.isEmpty()) {
+            openElements.get(openElements.size() - 1).getChildren().add(node);
+        } else if (rootConsumer != null) {
+            handOver(node);
+        } else {
+            roots.add(node);
+        }
+    }
+
+    private void pop(boolean closed, int outerEnd) {
+        BBCodeNode element = openElements.remove(openElements.size() - 1);
+        element.setClosed(closed);
+        element.setOuterEnd(outerEnd);
+        openCount(element.getTag())[0]--;
+        if (hiddenDepth > 0) {
+            hiddenDepth--;
+        }
+
+        if (openElements.isEmpty() && rootConsumer != null) {
+            handOver(element);
+        }
+    }
+
+    private void handOver(BBCodeNode root) {
+        handedRoot = root;
+        rootConsumer.accept(root);
+        handedRoot = null;
+    }
+
+    private int[] openCount(BBCodeTag tag) {
+        return openCounts.computeIfAbsent(tag, key -> new int[1]);
+    }
+}
@@ -0,0 +1,79 @@
+package demo.vencs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *  Passes on at most maxLength chars of displayed text, e.g. for a preview built with a visible text limit, which can
+ *  still overshoot it with the content of a noParse element. Text in elements that do not display their content is
+ *  passed on as it is. The cut never splits a surrogate pair, nor an entity of text that is already escaped.
+ */
+class BBCodeTruncatingVisitor implements BBCodeVisitor {
+    // the longest entity name looked for before the cut, e.g. &thetasym;
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    private final BBCodeVisitor visitor;
+    private final boolean escapedText;
+    private final List<Boolean> hidden = new ArrayList<>();
+    private int hiddenDepth;
+    private int room;
+    private boolean truncated;
+
+    BBCodeTruncatingVisitor(BBCodeVisitor visitor, int maxLength, boolean escapedText) {
+        this.visitor = visitor;
+        this.room = maxLength;
+        this.escapedText = escapedText;
+    }
+
+    boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public void text(CharSequence source, int start, int end) {
+        if (hiddenDepth > 0) {
+            visitor.text(source, start, end);
+            return;
+        }
+        // text ending right at the limit may have been cut by the tree builder already
+        if (end - start >= room) {
+            if (end - start > room) truncated = true;
+            end = cut(source, start, start + room);
+            room = 0;
+        } else {
+            room -= end - start;
+        }
+        if (end > start) {
+            visitor.text(source, start, end);
+        }
+    }
+
+    @Override
+    public void openElement(BBCodeTag tag, String param) {
+        boolean hiddenContent = !tag.isDisplayContent();
+        hidden.add(hiddenContent);
+        if (hiddenContent) hiddenDepth++;
+        visitor.openElement(tag, param);
+    }
+
+    @Override
+    public void closeElement() {
+        if (hidden.remove(hidden.size() - 1)) hiddenDepth--;
+        visitor.closeElement();
+    }
+
+    // moves the end back to the start of a surrogate pair or an entity it would split
+    private int cut(CharSequence source, int start, int end) {
+        if (end > start && Character.isHighSurrogate(source.charAt(end - 1))) {
+            return end - 1;
+        }
+        if (escapedText) {
+            for (int i = end - 1; i >= Math.max(start, end - MAX_ENTITY_LENGTH); i--) {
+                char c = source.charAt(i);
+                if (c == '&') return i;
+                if (c != '#' && (c >= 128 || !Character.isLetterOrDigit(c))) break;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,107 @@
+package demo.vencs;
+
+/*
+ *  Checks and percent-encodes the URLs of the url and img tags in a single pass, written straight into the HTML.
+ *  A URL without an http:// or https:// scheme gets https://, chars of 128 and above are written as the %XX of their
+ *  UTF-8 bytes, and the URL is valid when all of its ASCII chars are in urlChars and it has no lone surrogate.
+ *  None of the chars of a valid URL needs escaping in a quoted attribute value.
+ */
+class BBCodeURLEncoder {
+    private static final String DEFAULT_SCHEME = "https://";
+    // %XX of every byte
+    private static final String[] percentEncoded = new String[256];
+
+    // the ASCII chars allowed in a URL, all others make it invalid
+    private static final boolean[] urlChars = new boolean[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) urlChars[c] = true;
+        for (char c = 'A'; c <= 'Z'; c++) urlChars[c] = true;
+        for (char c = '0'; c <= '9'; c++) urlChars[c] = true;
+        for (char c : "-:;,@#!%&()~_?+=/\\.".toCharArray()) urlChars[c] = true;
+        for (int b = 0; b < 256; b++) percentEncoded[b] = String.format("%%%02X", b);
+    }
+
+    private BBCodeURLEncoder() {
+    }
+
+    /*
+     *  Appends the encoded URL and returns true, or returns false as soon as the URL turns out invalid,
+     *  leaving what was appended so far for the caller to drop.
+     */
+    static boolean writeURL(String url, StringBuilder out) {
+        if (!hasScheme(url)) out.append(DEFAULT_SCHEME);
+        int runStart = 0;
+        for (int i = 0; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c < 128) {
+                if (!urlChars[c]) return false;
+                continue;
+            }
+            int codePoint = codePointAt(url, i);
+            if (codePoint < 0) return false;
+            out.append(url, runStart, i);
+            if (codePoint < 0x800) {
+                out.append(percentEncoded[0xc0 | (codePoint >> 6)]);
+            } else {
+                if (codePoint < 0x10000) {
+                    out.append(percentEncoded[0xe0 | (codePoint >> 12)]);
+                } else {
+                    out.append(percentEncoded[0xf0 | (codePoint >> 18)]);
+                    out.append(percentEncoded[0x80 | ((codePoint >> 12) & 0x3f)]);
+                }
+                out.append(percentEncoded[0x80 | ((codePoint >> 6) & 0x3f)]);
+            }
+            out.append(percentEncoded[0x80 | (codePoint & 0x3f)]);
+            i += Character.charCount(codePoint) - 1;
+            runStart = i + 1;
+        }
+        out.append(url, runStart, url.length());
+        return true;
+    }
+
+    static boolean writeURL(String url, BBCodeUTF8Buffer out) {
+        if (!hasScheme(url)) out.write(DEFAULT_SCHEME);
+        int runStart = 0;
+        for (int i = 0; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c < 128) {
+                if (!urlChars[c]) return false;
+                continue;
+            }
+            int codePoint = codePointAt(url, i);
+            if (codePoint < 0) return false;
+            out.write(url, runStart, i);
+            if (codePoint < 0x800) {
+                out.write(percentEncoded[0xc0 | (codePoint >> 6)]);
+            } else {
+                if (codePoint < 0x10000) {
+                    out.write(percentEncoded[0xe0 | (codePoint >> 12)]);
+                } else {
+                    out.write(percentEncoded[0xf0 | (codePoint >> 18)]);
+                    out.write(percentEncoded[0x80 | ((codePoint >> 12) & 0x3f)]);
+                }
+                out.write(percentEncoded[0x80 | ((codePoint >> 6) & 0x3f)]);
+            }
+            out.write(percentEncoded[0x80 | (codePoint & 0x3f)]);
+            i += Character.charCount(codePoint) - 1;
+            runStart = i + 1;
+        }
+        out.write(url, runStart, url.length());
+        return true;
+    }
+
+    private static boolean hasScheme(String url) {
+        return url.startsWith("http://") || url.startsWith("https://");
+    }
+
+    // the code point at i, -1 for a lone surrogate
+    private static int codePointAt(String url, int i) {
+        char c = url.charAt(i);
+        if (!Character.isSurrogate(c)) return c;
+        if (Character.isHighSurrogate(c) && i + 1 < url.length() && Character.isLowSurrogate(url.charAt(i + 1))) {
+            return Character.toCodePoint(c, url.charAt(i + 1));
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,132 @@
+package demo.vencs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ *  A growable UTF-8 byte buffer, the UTF-8 counterpart of the StringBuilder the HTML is rendered into.
+ *  Strings are encoded as String#getBytes does, a lone surrogate becomes '?'.
+ */
+class BBCodeUTF8Buffer {
+    private byte[] bytes;
+    private int length;
+
+    BBCodeUTF8Buffer(int capacity) {
+        bytes = new byte[Math.max(16, capacity)];
+    }
+
+    int length() {
+        return length;
+    }
+
+    int capacity() {
+        return bytes.length;
+    }
+
+    void setLength(int length) {
+        this.length = length;
+    }
+
+    void write(int b) {
+        if (length == bytes.length) {
+            grow(1);
+        }
+        bytes[length++] = (byte) b;
+    }
+
+    void write(ByteBuffer source, int index, int count) {
+        ensureCapacity(count);
+        if (source.hasArray()) {
+            System.arraycopy(source.array(), source.arrayOffset() + index, bytes, length, count);
+        } else {
+            ByteBuffer slice = source.duplicate();
+            slice.limit(index + count);
+            slice.position(index);
+            slice.get(bytes, length, count);
+        }
+        length += count;
+    }
+
+    void write(byte[] source) {
+        ensureCapacity(source.length);
+        System.arraycopy(source, 0, bytes, length, source.length);
+        length += source.length;
+    }
+
+    void write(BBCodeUTF8Buffer source) {
+        ensureCapacity(source.length);
+        System.arraycopy(source.bytes, 0, bytes, length, source.length);
+        length += source.length;
+    }
+
+    void write(String s) {
+        write(s, 0, s.length());
+    }
+
+    void write(String s, int start, int end) {
+        ensureCapacity(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                write(c);
+            } else if (c < 0x800) {
+                write(0xc0 | (c >> 6));
+                write(0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                write(0xf0 | (codePoint >> 18));
+                write(0x80 | ((codePoint >> 12) & 0x3f));
+                write(0x80 | ((codePoint >> 6) & 0x3f));
+                write(0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                write('?');
+            } else {
+                write(0xe0 | (c >> 12));
+                write(0x80 | ((c >> 6) & 0x3f));
+                write(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    void writeInt(int value) {
+        ensureCapacity(4);
+        setInt(length, value);
+        length += 4;
+    }
+
+    // big-endian, as ByteBuffer and DataOutput write it
+    void setInt(int index, int value) {
+        bytes[index] = (byte) (value >>> 24);
+        bytes[index + 1] = (byte) (value >>> 16);
+        bytes[index + 2] = (byte) (value >>> 8);
+        bytes[index + 3] = (byte) value;
+    }
+
+    void copyTo(ByteBuffer target) {
+        target.put(bytes, 0, length);
+    }
+
+    ByteBuffer asByteBuffer() {
+        return ByteBuffer.wrap(bytes, 0, length);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void ensureCapacity(int count) {
+        if (length + count > bytes.length) {
+            grow(count);
+        }
+    }
+
+    private void grow(int count) {
+        bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+    }
+}
@@ -0,0 +1,96 @@
+package demo.vencs;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ *  Renders the events of a post to UTF-8 HTML, the way BBCodeHTMLRenderer renders them to chars.
+ *  The text comes from a BBCodeUTF8Source and is copied as it is, without decoding and encoding it again, only the HTML
+ *  of the tags is encoded, and escaped text is copied in the runs between the escaped chars.
+ *  The output limit is counted in bytes.
+ */
+class BBCodeUTF8Renderer implements BBCodeVisitor {
+    private final List<Frame> frames = new ArrayList<>();
+    // buffers of closed elements, reused for the next buffered elements
+    private final List<BBCodeUTF8Buffer> spareBuffers = new ArrayList<>();
+    private BBCodeUTF8Buffer content;
+    private boolean noParse;
+    private final long maxLength;
+    private final boolean escapeHTML;
+    private long length;
+
+    BBCodeUTF8Renderer(BBCodeUTF8Buffer html, long maxLength, boolean escapeHTML) {
+        this.content = html;
+        this.maxLength = maxLength;
+        this.escapeHTML = escapeHTML;
+    }
+
+    @Override
+    public void text(CharSequence source, int start, int end) {
+        BBCodeUTF8Source utf8 = (BBCodeUTF8Source) source;
+        int contentLength = content.length();
+        String[] entities = BBCodeHTMLEscaper.entities(escapeHTML, noParse);
+        if (entities == null) {
+            utf8.copyTo(content, start, end);
+        } else {
+            BBCodeHTMLEscaper.escape(utf8, start, end, entities, content);
+        }
+        count(content.length() - contentLength);
+    }
+
+    @Override
+    public void openElement(BBCodeTag tag, String param) {
+        if (escapeHTML) param = BBCodeHTMLEscaper.escapeHTML(param);
+        frames.add(new Frame(tag, param, content, noParse));
+        if (tag.isContentDependent() || !tag.isDisplayContent()) {
+            content = spareBuffers.isEmpty() ? new BBCodeUTF8Buffer(64) : spareBuffers.remove(spareBuffers.size() - 1);
+        } else {
+            count(tag.writeOpenTag(param, "", content));
+        }
+        noParse = tag.isNoParse();
+    }
+
+    @Override
+    public void closeElement() {
+        Frame frame = frames.remove(frames.size() - 1);
+        BBCodeTag tag = frame.tag;
+        if (frame.parentContent == content) {
+            count(tag.writeEndTag(frame.param, "", content));
+        } else {
+            String elementContent = tag.isContentDependent() ? content.toString() : "";
+            count(tag.writeOpenTag(frame.param, elementContent, frame.parentContent));
+            if (tag.isDisplayContent()) {
+                frame.parentContent.write(content);
+            } else {
+                // the hidden content was counted, but it is not part of the output
+                length -= content.length();
+            }
+            count(tag.writeEndTag(frame.param, elementContent, frame.parentContent));
+            content.setLength(0);
+            spareBuffers.add(content);
+        }
+        content = frame.parentContent;
+        noParse = frame.parentNoParse;
+    }
+
+    private void count(int written) {
+        length += written;
+        if (length > maxLength) {
+            throw new BBCodeLimitExceededException("HTML longer than " + maxLength + " bytes");
+        }
+    }
+
+    private static class Frame {
+        private final BBCodeTag tag;
+        private final String param;
+        private final BBCodeUTF8Buffer parentContent;
+        private final boolean parentNoParse;
+
+        private Frame(BBCodeTag tag, String param, BBCodeUTF8Buffer parentContent, boolean parentNoParse) {
+            this.tag = tag;
+            this.param = param;
+            this.parentContent = parentContent;
+            this.parentNoParse = parentNoParse;
+        }
+    }
+}
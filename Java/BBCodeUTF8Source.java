@@ -0,0 +1,55 @@
+package demo.vencs;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ *  UTF-8 bytes seen as chars one byte each, so the tokenizer runs over them without decoding them first.
+ *  The BBCode syntax is ASCII, and every byte of a multi-byte UTF-8 sequence is 0x80 or above, so such bytes are
+ *  never taken for a bracket or a tag name and the tokens are the same as for the decoded text, in byte positions.
+ *  Only toString decodes, the tokenizer uses it for tag params. Text runs are copied to the output as they are.
+ */
+class BBCodeUTF8Source implements CharSequence {
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    BBCodeUTF8Source(ByteBuffer bytes) {
+        this(bytes, bytes.position(), bytes.remaining());
+    }
+
+    private BBCodeUTF8Source(ByteBuffer bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new BBCodeUTF8Source(bytes, offset + start, end - start);
+    }
+
+    void copyTo(BBCodeUTF8Buffer out, int start, int end) {
+        out.write(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        if (bytes.hasArray()) {
+            return new String(bytes.array(), bytes.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        BBCodeUTF8Buffer copy = new BBCodeUTF8Buffer(length);
+        copyTo(copy, 0, length);
+        return copy.toString();
+    }
+}
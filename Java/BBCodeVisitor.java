@@ -0,0 +1,13 @@
+package demo.vencs;
+
+/*
+ *  Receives a parsed post as a sequence of events. An element which is never closed is reported as text
+ *  followed by its content, so every openElement call is matched by a closeElement call.
+ */
+interface BBCodeVisitor {
+    void text(CharSequence source, int start, int end);
+
+    void openElement(BBCodeTag tag, String param);
+
+    void closeElement();
+}